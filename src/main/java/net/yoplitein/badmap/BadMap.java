@@ -1,12 +1,9 @@
 package net.yoplitein.badmap;
 
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.exceptions.CommandSyntaxException;
 
@@ -28,26 +25,29 @@ import net.minecraft.text.LiteralText;
 import net.minecraft.text.Texts;
 import net.minecraft.util.Formatting;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 
 public class BadMap implements DedicatedServerModInitializer
 {
 	public static final Logger LOGGER = LogManager.getLogger();
+	static final int DEFAULT_BENCH_RADIUS = 16; // chunks
+	static final int MAX_BENCH_RADIUS = 64; // parsed chunks of the whole area are held in memory at once
 	private static final LoggerContext logContext = (LoggerContext)LogManager.getContext(false);
 	
 	public static ModConfig CONFIG;
 	
-	private static final ThreadGroup workers = new ThreadGroup("BadMap render pool");
-	private static final Utils.Cell<Integer> workerCounter = new Utils.Cell<>(0);
-	public static final ThreadPoolExecutor THREADPOOL = new ThreadPoolExecutor(
-		0, 1, // start with 0 core size to ensure no threads are spawned until config is loaded
-		0, TimeUnit.DAYS,
-		new LinkedBlockingQueue<Runnable>(),
-		runnable -> {
-			final var thread = new Thread(workers, runnable, "BM-pool-%d".formatted(workerCounter.val++));
-			thread.setPriority(CONFIG.workerThreadPriority);
-			return thread;
-		}
-	);
+	public static final WorkerPool THREADPOOL = new WorkerPool();
+	
+	public static TileWriter TILE_WRITER;
+	public static TileManifest MANIFEST;
+	public static final RasterPool RASTER_POOL = new RasterPool();
+	public static final LruCache<String, RenderJob.CachedRaster> RASTER_CACHE = new LruCache<>(0, RenderJob.CachedRaster::sizeBytes, raster -> RASTER_POOL.release(raster.img()));
+	public static LruCache<String, TileServer.CachedFile> TILE_CACHE; // null when the tile server is disabled
+	public static final ChunkFailures FAILURES = new ChunkFailures();
+	private static TileServer tileServer;
+	private static final TickGovernor governor = new TickGovernor();
+	private static final RenderScheduler scheduler = new RenderScheduler();
+	private static ChatAppender chatAppender;
 	
 	@Override
 	public void onInitializeServer()
@@ -57,8 +57,12 @@ public class BadMap implements DedicatedServerModInitializer
 				CommandManager.literal("badmap")
 					.requires(executor -> executor.hasPermissionLevel(4))
 					.then(
-						CommandManager.literal("test")
-							.executes(BadMap::cmdTest)
+						CommandManager.literal("bench")
+							.then(
+								CommandManager.argument("radius", IntegerArgumentType.integer(0, MAX_BENCH_RADIUS))
+									.executes(ctx -> cmdBench(ctx, IntegerArgumentType.getInteger(ctx, "radius")))
+							)
+							.executes(ctx -> cmdBench(ctx, DEFAULT_BENCH_RADIUS))
 					)
 					.then(
 						CommandManager.literal("config")
@@ -82,13 +86,29 @@ public class BadMap implements DedicatedServerModInitializer
 									)
 							)
 					)
+					.then(
+						CommandManager.literal("failures")
+							.then(
+								CommandManager.literal("clear")
+									.executes(BadMap::cmdFailuresClear)
+							)
+							.executes(BadMap::cmdFailures)
+					)
 					.then(
 						CommandManager.literal("render")
 							.then(
 								CommandManager.literal("force")
-									.executes(ctx -> cmdRender(ctx, false))
+									.executes(ctx -> cmdRender(ctx, RenderJob.Mode.FULL))
+							)
+							.then(
+								CommandManager.literal("preview")
+									.executes(ctx -> cmdRender(ctx, RenderJob.Mode.PREVIEW))
 							)
-							.executes(ctx -> cmdRender(ctx, true))
+							.then(
+								CommandManager.literal("resume")
+									.executes(BadMap::cmdRenderResume)
+							)
+							.executes(ctx -> cmdRender(ctx, RenderJob.Mode.INCREMENTAL))
 					)
 			);
 			dispatcher.register(
@@ -96,57 +116,79 @@ public class BadMap implements DedicatedServerModInitializer
 					.redirect(root)
 			);
 		});
-		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+		ServerLifecycleEvents.SERVER_STARTING.register(server -> {
+			// before worlds load, as chunk mtimes are recorded from the moment chunks are
 			CONFIG = ModConfig.loadConfig();
+		});
+		ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+			MANIFEST = TileManifest.load();
+			TILE_WRITER = new TileWriter(CONFIG.tileWriterQueueSize);
 			onConfigReloaded(server);
 			
 			setupChatAppender(server);
+			// scheduled renders are left for the scheduler, so they only resume within a window
+			if(!RenderJournal.isScheduled()) new RenderJob(server).resume();
 		});
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			if(tileServer != null)
+			{
+				LOGGER.info("stopping tile server");
+				tileServer.stop();
+				tileServer = null;
+			}
+			
 			LOGGER.info("shutting down render worker pool");
 			THREADPOOL.shutdown();
 		});
 		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
-			if(THREADPOOL.isTerminated()) return;
+			awaitRenderPool();
 			
-			LOGGER.warn("waiting for render pool to terminate");
+			// only after the pool is gone, as workers may still be queueing tiles
+			LOGGER.info("flushing tile writer");
+			TILE_WRITER.shutdown();
 			try
 			{
-				if(THREADPOOL.awaitTermination(10, TimeUnit.SECONDS)) return;
+				if(!TILE_WRITER.awaitTermination(10, TimeUnit.SECONDS))
+					LOGGER.error("tile writer did not finish after 10 seconds");
 			}
 			catch(Exception err)
 			{
-				LOGGER.error("awaitTermination interrupted", err);
+				LOGGER.error("tile writer awaitTermination interrupted", err);
 			}
-			
-			final var dropped = THREADPOOL.shutdownNow();
-			LOGGER.error("render pool did not terminate after 10 seconds, forcefully shutdown with {} tasks remaining", dropped.size());
 		});
 		
-		// FIXME: debugging
-		final var tickCounter = new AtomicInteger(0);
-		final var lastTps = new AtomicLong(System.currentTimeMillis());
-		/* ServerTickEvents.START_SERVER_TICK.register(server -> {
-			LOGGER.trace("server tick start");
-		}); */
+		ServerTickEvents.START_SERVER_TICK.register(server -> governor.onTickStart());
 		ServerTickEvents.END_SERVER_TICK.register(server -> {
-			// LOGGER.trace("server tick end");
-			final var now = System.currentTimeMillis();
-			final var ticks = tickCounter.incrementAndGet();
-			
-			if(now - lastTps.get() >= 6000)
-			{
-				lastTps.set(now);
-				tickCounter.set(0);
-				LOGGER.trace("server running at {} tps", ticks / 6);
-			}
+			governor.onTickEnd();
+			scheduler.onTick(server);
+			final var job = RenderJob.getActive();
+			if(job != null) job.onTick();
+			if(chatAppender != null) chatAppender.drain();
 		});
 	}
 	
+	private static void awaitRenderPool()
+	{
+		if(THREADPOOL.isTerminated()) return;
+		
+		LOGGER.warn("waiting for render pool to terminate");
+		try
+		{
+			if(THREADPOOL.awaitTermination(10, TimeUnit.SECONDS)) return;
+		}
+		catch(Exception err)
+		{
+			LOGGER.error("awaitTermination interrupted", err);
+		}
+		
+		final var dropped = THREADPOOL.shutdownNow();
+		LOGGER.error("render pool did not terminate after 10 seconds, forcefully shutdown with {} tasks remaining", dropped);
+	}
+	
 	private static void setupChatAppender(MinecraftServer server)
 	{
 		final var cfg = logContext.getConfiguration();
-		final var chatAppender = ChatAppender.createAppender(server, "BMChatAppender", PatternLayout.createDefaultLayout(cfg));
+		chatAppender = ChatAppender.createAppender(server, "BMChatAppender", PatternLayout.createDefaultLayout(cfg));
 		final var loggerCfg = cfg.getLoggerConfig("net.yoplitein.badmap.BadMap");
 		
 		chatAppender.start();
@@ -158,42 +200,50 @@ public class BadMap implements DedicatedServerModInitializer
 	
 	private static void onConfigReloaded(MinecraftServer server)
 	{
-		var workerThreads = CONFIG.maxWorkerThreads;
-		if(workerThreads <= 0) workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
-		LOGGER.debug("spawning {} worker threads", workerThreads);
-		THREADPOOL.setMaximumPoolSize(workerThreads);
-		// without this, new threads are never spun up due to dumb executor semantics around the workqueue
-		THREADPOOL.setCorePoolSize(workerThreads);
+		THREADPOOL.configure(CONFIG);
 		
-		LOGGER.debug("setting priority of existing threads to {}", CONFIG.workerThreadPriority);
-		var threads = new Thread[workers.activeCount()];
-		workers.enumerate(threads);
-		for(var thread: threads) thread.setPriority(CONFIG.workerThreadPriority);
+		RASTER_CACHE.setBudget((long)CONFIG.rasterCacheMegabytes << 20);
+		RASTER_POOL.setCapacity(CONFIG.rasterPoolSize);
+		setupTileServer();
 		
 		LOGGER.info("config successfully reloaded");
 	}
 	
-	private static int cmdTest(CommandContext<ServerCommandSource> ctx) throws CommandSyntaxException
+	private static void setupTileServer()
 	{
-		/* THREADPOOL.execute(() -> {
-			final var server = ctx.getSource().getMinecraftServer();
-			final var world = server.getOverworld();
-			final var job = new RenderJob(null, server);
-			
-			final var start = System.currentTimeMillis();
-			final var chunks = job.discoverChunks(Arrays.asList(world.getSpawnPos()));
-			final var end = System.currentTimeMillis();
-			LOGGER.info("found {} chunks in {} ms", chunks.size(), end - start);
-		}); */
+		if(tileServer != null)
+		{
+			tileServer.stop();
+			tileServer = null;
+		}
+		
+		if(!CONFIG.httpEnabled)
+		{
+			TILE_CACHE = null;
+			return;
+		}
 		
-		LOGGER.info("<loglevels>");
-		LOGGER.trace("trace");
-		LOGGER.debug("debug");
-		LOGGER.info("info");
-		LOGGER.warn("warn");
-		LOGGER.error("error");
-		LOGGER.info("</loglevels>");
+		final var budget = (long)CONFIG.httpCacheMegabytes << 20;
+		if(TILE_CACHE == null) TILE_CACHE = new LruCache<>(budget, file -> file.data().length);
+		else TILE_CACHE.setBudget(budget);
 		
+		try { tileServer = TileServer.start(CONFIG); }
+		catch(Exception err) { LOGGER.error("failed to start tile server", err); }
+	}
+	
+	private static int cmdBench(CommandContext<ServerCommandSource> ctx, int radius) throws CommandSyntaxException
+	{
+		final var src = ctx.getSource();
+		final var server = src.getMinecraftServer();
+		
+		if(RenderJob.getActive() != null)
+		{
+			src.sendError(new LiteralText("A render is already running"));
+			return 0;
+		}
+		
+		// nothing is written, but timings would be meaningless while a render competes for the workers
+		new RenderJob(server).bench(src.getWorld(), new ChunkPos(new BlockPos(src.getPosition())), radius);
 		return 1;
 	}
 	
@@ -253,14 +303,81 @@ public class BadMap implements DedicatedServerModInitializer
 		return 1;
 	}
 	
-	private static int cmdRender(CommandContext<ServerCommandSource> ctx, boolean incremental) throws CommandSyntaxException
+	private static int cmdFailures(CommandContext<ServerCommandSource> ctx) throws CommandSyntaxException
+	{
+		final var src = ctx.getSource();
+		final var failures = FAILURES.list();
+		if(failures.isEmpty())
+		{
+			src.sendFeedback(new LiteralText("No chunks have failed to render"), false);
+			return 0;
+		}
+		
+		src.sendFeedback(new LiteralText("%d chunks failed to render:".formatted(failures.size())), false);
+		for(var failure: failures.subList(0, Math.min(failures.size(), 20)))
+		{
+			final var pos = failure.pos();
+			final var locText = Utils.getLocationTexts(List.of(new BlockPos(pos.getStartX(), 64, pos.getStartZ())), true, failure.dimension()).get(0);
+			src.sendFeedback(
+				LiteralText.EMPTY.copy()
+					.append(locText)
+					.append(new LiteralText(" in %s".formatted(failure.dimension())))
+					.append(new LiteralText(" %s: %s".formatted(failure.stage(), failure.error())).formatted(Formatting.GRAY)),
+				false
+			);
+		}
+		if(failures.size() > 20)
+			src.sendFeedback(new LiteralText("...and %d more, see the server log".formatted(failures.size() - 20)).formatted(Formatting.GRAY, Formatting.ITALIC), false);
+		
+		return failures.size();
+	}
+	
+	private static int cmdFailuresClear(CommandContext<ServerCommandSource> ctx) throws CommandSyntaxException
+	{
+		FAILURES.clearAll();
+		ctx.getSource().sendFeedback(new LiteralText("Cleared chunk failures"), false);
+		return 1;
+	}
+	
+	private static int cmdRender(CommandContext<ServerCommandSource> ctx, RenderJob.Mode mode) throws CommandSyntaxException
 	{
 		final var src = ctx.getSource();
 		final var server = src.getMinecraftServer();
 		
+		if(RenderJob.getActive() != null)
+		{
+			src.sendError(new LiteralText("A render is already running"));
+			return 0;
+		}
+		
+		if(RenderJournal.hasLiveLeases())
+		{
+			src.sendError(new LiteralText("Other workers are still rendering shards of the previous render, join it with /badmap render resume"));
+			return 0;
+		}
+		
 		final var job = new RenderJob(server);
-		job.render(incremental);
-		LOGGER.info("Starting {} render", incremental ? "incremental" : "full");
+		job.render(mode);
+		LOGGER.info("Starting {} render", mode.name().toLowerCase());
+		
+		return 1;
+	}
+	
+	private static int cmdRenderResume(CommandContext<ServerCommandSource> ctx) throws CommandSyntaxException
+	{
+		final var src = ctx.getSource();
+		
+		if(RenderJob.getActive() != null)
+		{
+			src.sendError(new LiteralText("A render is already running"));
+			return 0;
+		}
+		
+		if(!new RenderJob(src.getMinecraftServer()).resume())
+		{
+			src.sendError(new LiteralText("There is no render to resume"));
+			return 0;
+		}
 		
 		return 1;
 	}
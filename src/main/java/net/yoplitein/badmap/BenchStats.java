@@ -0,0 +1,69 @@
+package net.yoplitein.badmap;
+
+import java.lang.management.ManagementFactory;
+
+// Wall time, heap allocation and GC activity over one stage of a benchmark, as reported by the JVM's management beans.
+// Allocation is summed over all threads, so includes the server's own while the benchmark runs.
+class BenchStats
+{
+	private final long startNanos;
+	private final long startAllocated;
+	private final long startGcMillis;
+	private final long startGcCount;
+	
+	private BenchStats()
+	{
+		startNanos = System.nanoTime();
+		startAllocated = allocatedBytes();
+		startGcMillis = gcMillis();
+		startGcCount = gcCount();
+	}
+	
+	static BenchStats start()
+	{
+		return new BenchStats();
+	}
+	
+	// Logs throughput of the stage since `start`, e.g. `parse: 1024 chunks in 2000ms (512.0 chunks/s)`. Returns its duration in seconds.
+	double report(String stage, long count, String unit)
+	{
+		final var secs = (System.nanoTime() - startNanos) / 1e9;
+		final var allocated = allocatedBytes();
+		final var allocRate = allocated < 0 ? "n/a" : "%.1f MB/s".formatted((allocated - startAllocated) / secs / (1 << 20));
+		
+		BadMap.LOGGER.info(
+			"bench {}: {} {} in {}ms ({} {}/s), allocating {}, {} GCs taking {}ms",
+			stage, count, unit, Math.round(secs * 1000), "%.1f".formatted(count / secs), unit,
+			allocRate, gcCount() - startGcCount, gcMillis() - startGcMillis
+		);
+		return secs;
+	}
+	
+	// Returns -1 if allocation tracking is unsupported.
+	private static long allocatedBytes()
+	{
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) || !threads.isThreadAllocatedMemoryEnabled())
+			return -1;
+		
+		var total = 0L;
+		for(var bytes: threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			if(bytes > 0) total += bytes; // -1 for threads that died in the meantime
+		return total;
+	}
+	
+	private static long gcMillis()
+	{
+		var total = 0L;
+		for(var gc: ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionTime());
+		return total;
+	}
+	
+	private static long gcCount()
+	{
+		var total = 0L;
+		for(var gc: ManagementFactory.getGarbageCollectorMXBeans())
+			total += Math.max(0, gc.getCollectionCount());
+		return total;
+	}
+}
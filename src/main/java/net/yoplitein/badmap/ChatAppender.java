@@ -1,6 +1,9 @@
 package net.yoplitein.badmap;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
@@ -15,11 +18,42 @@ import net.minecraft.text.LiteralText;
 import net.minecraft.util.Formatting;
 import net.minecraft.util.Util;
 
+// Relays log messages to operators in chat.
+// Messages are only queued by the logging thread, and delivered from the server thread by `drain`,
+// at a limited rate and with bursts of similar `perf:` lines collapsed into one.
 public class ChatAppender extends AbstractAppender
 {
 	static final boolean inDevEnv = FabricLoader.getInstance().isDevelopmentEnvironment();
+	static final double MESSAGES_PER_TICK = 0.25; // i.e. 5 per second
+	static final double MAX_BURST = 8;
+	static final int MAX_BACKLOG = 64;
+	
 	MinecraftServer server;
 	
+	private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<>();
+	
+	// only touched from the server thread
+	private final ArrayDeque<Message> backlog = new ArrayDeque<>();
+	private final HashMap<String, Message> pendingPerf = new HashMap<>();
+	private double tokens = MAX_BURST;
+	private int dropped = 0;
+	
+	static class Message
+	{
+		final Level level;
+		String text;
+		final String perfKey; // null if not a perf line
+		int count = 1;
+		
+		Message(Level level, String text)
+		{
+			this.level = level;
+			this.text = text;
+			// perf lines only differ by their numbers, e.g. `perf: parsed 123 chunks in 45ms`
+			this.perfKey = text.startsWith("perf:") ? text.replaceAll("\\d+", "#") : null;
+		}
+	}
+	
 	protected ChatAppender(String name, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions, Property[] properties, MinecraftServer server)
 	{
 		super(name, filter, layout, ignoreExceptions, properties);
@@ -37,8 +71,58 @@ public class ChatAppender extends AbstractAppender
 		final var level = event.getLevel();
 		if(!level.isMoreSpecificThan(inDevEnv ? Level.DEBUG : Level.INFO)) return;
 		
+		queue.add(new Message(level, event.getMessage().getFormattedMessage()));
+	}
+	
+	// Delivers queued messages, to be called once per server tick.
+	public void drain()
+	{
+		Message msg;
+		while((msg = queue.poll()) != null)
+		{
+			if(msg.perfKey != null)
+			{
+				final var existing = pendingPerf.get(msg.perfKey);
+				if(existing != null)
+				{
+					// keep the latest numbers
+					existing.text = msg.text;
+					existing.count++;
+					continue;
+				}
+				pendingPerf.put(msg.perfKey, msg);
+			}
+			
+			backlog.add(msg);
+			if(backlog.size() > MAX_BACKLOG)
+			{
+				final var oldest = backlog.poll();
+				if(oldest.perfKey != null) pendingPerf.remove(oldest.perfKey);
+				dropped += oldest.count;
+			}
+		}
+		
+		tokens = Math.min(MAX_BURST, tokens + MESSAGES_PER_TICK);
+		
+		if(dropped > 0 && tokens >= 1)
+		{
+			tokens--;
+			send(Level.WARN, "%d messages were dropped, see the server log".formatted(dropped));
+			dropped = 0;
+		}
+		
+		while(tokens >= 1 && (msg = backlog.poll()) != null)
+		{
+			tokens--;
+			if(msg.perfKey != null) pendingPerf.remove(msg.perfKey);
+			send(msg.level, msg.count > 1 ? "%s (x%d)".formatted(msg.text, msg.count) : msg.text);
+		}
+	}
+	
+	private void send(Level level, String text)
+	{
 		final var playerMgr = server.getPlayerManager();
-		final var strMsg = String.format("[BadMap %s] %s", event.getLevel().name(), event.getMessage().getFormattedMessage());
+		final var strMsg = String.format("[BadMap %s] %s", level.name(), text);
 		final var msg = new LiteralText(strMsg).styled(style -> {
 			if(level == Level.DEBUG) return style.withFormatting(Formatting.GRAY, Formatting.ITALIC);
 			if(level == Level.WARN) return style.withFormatting(Formatting.YELLOW);
@@ -0,0 +1,52 @@
+package net.yoplitein.badmap;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minecraft.util.math.ChunkPos;
+
+// Chunks that couldn't be parsed or rendered, which are left out of their region rather than failing it.
+// Entries are cleared once the chunk renders successfully, so this only lists chunks that are still broken.
+public class ChunkFailures
+{
+	public static record Failure(String dimension, ChunkPos pos, String stage, String error, long at) {}
+	
+	private static record Key(String dimension, ChunkPos pos) {}
+	
+	private final ConcurrentHashMap<Key, Failure> failures = new ConcurrentHashMap<>();
+	
+	public void record(String dimension, ChunkPos pos, String stage, Throwable err)
+	{
+		final var failure = new Failure(dimension, pos, stage, err.toString(), System.currentTimeMillis());
+		if(failures.put(new Key(dimension, pos), failure) == null)
+			BadMap.LOGGER.warn("failed to {} chunk {} in {}, skipping it: {}", stage, pos, dimension, failure.error);
+		BadMap.LOGGER.trace("chunk {} in {} {} failure", pos, dimension, stage, err);
+	}
+	
+	public void clear(String dimension, ChunkPos pos)
+	{
+		// cheap when absent, which is nearly always
+		if(!failures.isEmpty()) failures.remove(new Key(dimension, pos));
+	}
+	
+	public void clearAll()
+	{
+		failures.clear();
+	}
+	
+	public int size()
+	{
+		return failures.size();
+	}
+	
+	public List<Failure> list()
+	{
+		return failures
+			.values()
+			.stream()
+			.sorted(Comparator.comparingLong(Failure::at).reversed())
+			.toList()
+		;
+	}
+}
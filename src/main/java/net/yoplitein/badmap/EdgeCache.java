@@ -0,0 +1,133 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.util.math.ChunkPos;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Persistent record of the surface heights along each chunk's southern edge (z = 15),
+// so the chunk to its south can be shaded without that chunk being parsed (i.e. it's in another region,
+// or was up to date and skipped in an incremental render).
+// Stored as one file per region in the cache dir, holding 16 ints per chunk, under the dimension's `prefix` (see RenderJob.Dimension.)
+// Only the most recently used regions are kept in memory, modified ones being saved as they're evicted.
+public class EdgeCache
+{
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+	static final int REGION_SIZE = 32 * 32 * 16;
+	static final int MAX_CACHED_REGIONS = 256; // 64KB each
+	
+	private final LruCache<RegionPos, Region> regions = new LruCache<>(MAX_CACHED_REGIONS, region -> 1, this::evicted);
+	private final Set<RegionPos> dirty = ConcurrentHashMap.newKeySet();
+	private final String prefix;
+	
+	private static record Region(RegionPos pos, int[] heights) {}
+	
+	public EdgeCache(String prefix)
+	{
+		this.prefix = prefix;
+	}
+	
+	public @Nullable int[] get(ChunkPos pos)
+	{
+		final var regionPos = RegionPos.of(pos);
+		final var offset = getOffset(regionPos, pos);
+		synchronized(regions)
+		{
+			final var region = getRegion(regionPos).heights;
+			if(region[offset] == UNKNOWN) return null;
+			
+			return Arrays.copyOfRange(region, offset, offset + 16);
+		}
+	}
+	
+	public void put(ChunkPos pos, int[] heights)
+	{
+		final var regionPos = RegionPos.of(pos);
+		// under the cache's lock, so the region can't be evicted (and saved) between being changed and marked dirty
+		synchronized(regions)
+		{
+			System.arraycopy(heights, 0, getRegion(regionPos).heights, getOffset(regionPos, pos), 16);
+			dirty.add(regionPos);
+		}
+	}
+	
+	// Writes modified regions to disk.
+	public void flush()
+	{
+		for(var regionPos: dirty)
+			synchronized(regions)
+			{
+				final var region = regions.get(regionPos);
+				if(region != null && dirty.remove(regionPos)) save(region);
+			}
+	}
+	
+	// Must be called under the cache's lock.
+	private Region getRegion(RegionPos pos)
+	{
+		var region = regions.get(pos);
+		if(region == null)
+		{
+			region = new Region(pos, load(pos));
+			regions.put(pos, region);
+		}
+		return region;
+	}
+	
+	// regions are only dropped once saved, as their heights would otherwise be lost
+	private void evicted(Region region)
+	{
+		if(dirty.remove(region.pos)) save(region);
+	}
+	
+	private void save(Region region)
+	{
+		final var buf = ByteBuffer.allocate(REGION_SIZE * 4);
+		buf.asIntBuffer().put(region.heights);
+		
+		final var file = getFile(region.pos);
+		file.getParentFile().mkdirs();
+		try { Utils.writeAtomic(file, buf.array()); }
+		catch(Exception err) { BadMap.LOGGER.error("failed to save edge heights for region {}", region.pos, err); }
+	}
+	
+	private static int getOffset(RegionPos regionPos, ChunkPos pos)
+	{
+		final var posInRegion = regionPos.chunkPosInRegion(pos);
+		return (posInRegion.z * 32 + posInRegion.x) * 16;
+	}
+	
+	private File getFile(RegionPos pos)
+	{
+		return BadMap.CONFIG.bmapDir.resolve("edges").resolve(prefix + "%d_%d.bin".formatted(pos.x(), pos.z())).toFile();
+	}
+	
+	private int[] load(RegionPos pos)
+	{
+		final var region = new int[REGION_SIZE];
+		final var file = getFile(pos);
+		
+		if(file.length() == REGION_SIZE * 4)
+		{
+			try
+			{
+				ByteBuffer.wrap(Files.readAllBytes(file.toPath())).asIntBuffer().get(region);
+				return region;
+			}
+			catch(Exception err)
+			{
+				BadMap.LOGGER.error("failed to load edge heights for region {}", pos, err);
+			}
+		}
+		
+		Arrays.fill(region, UNKNOWN);
+		return region;
+	}
+}
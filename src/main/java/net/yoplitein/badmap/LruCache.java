@@ -0,0 +1,91 @@
+package net.yoplitein.badmap;
+
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+import org.jetbrains.annotations.Nullable;
+
+// Size-bounded LRU, evicting least recently used entries once their total weight exceeds the budget.
+// `onRemoved` is called (under the cache's lock) for every value put that leaves the cache again,
+// whether evicted, replaced, removed, or never kept in the first place.
+public class LruCache<K, V>
+{
+	private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private final ToLongFunction<V> weigher;
+	private final Consumer<V> onRemoved;
+	private long budget;
+	private long size = 0;
+	
+	public LruCache(long budget, ToLongFunction<V> weigher)
+	{
+		this(budget, weigher, value -> {});
+	}
+	
+	public LruCache(long budget, ToLongFunction<V> weigher, Consumer<V> onRemoved)
+	{
+		this.budget = budget;
+		this.weigher = weigher;
+		this.onRemoved = onRemoved;
+	}
+	
+	public synchronized @Nullable V get(K key)
+	{
+		return entries.get(key);
+	}
+	
+	public synchronized void put(K key, V value)
+	{
+		final var weight = weigher.applyAsLong(value);
+		if(weight > budget)
+		{
+			remove(key);
+			onRemoved.accept(value);
+			return;
+		}
+		
+		final var old = entries.put(key, value);
+		if(old != null)
+		{
+			size -= weigher.applyAsLong(old);
+			onRemoved.accept(old);
+		}
+		size += weight;
+		evict();
+	}
+	
+	// For entries read back from disk, which must not clobber a fresher entry put by a producer.
+	public synchronized void putIfAbsent(K key, V value)
+	{
+		if(!entries.containsKey(key)) put(key, value);
+		else onRemoved.accept(value);
+	}
+	
+	public synchronized void remove(K key)
+	{
+		final var old = entries.remove(key);
+		if(old != null)
+		{
+			size -= weigher.applyAsLong(old);
+			onRemoved.accept(old);
+		}
+	}
+	
+	public synchronized void setBudget(long budget)
+	{
+		this.budget = budget;
+		evict();
+	}
+	
+	private void evict()
+	{
+		final var iter = entries.values().iterator();
+		while(size > budget && iter.hasNext())
+		{
+			final var old = iter.next();
+			size -= weigher.applyAsLong(old);
+			iter.remove();
+			onRemoved.accept(old);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.apache.commons.io.FileUtils;
+
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.text.Text;
+import net.minecraft.util.math.ChunkPos;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Points of interest for map markers, pulled from chunk NBT while it's already in memory for rendering:
+// signs with text, named banners, and structure starts.
+// Kept per region at bmapDir/markers/x_z.json (in a subdirectory for dimensions besides the overworld), keyed by chunk index within the region,
+// and only the chunks that were rendered are replaced on update.
+public class MarkerIndex
+{
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	
+	public static class Marker
+	{
+		String type; // `sign`, `banner` or `structure`
+		int x, y, z;
+		String label;
+		
+		Marker(String type, int x, int y, int z, String label)
+		{
+			this.type = type;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.label = label;
+		}
+	}
+	
+	private static class RegionMarkers
+	{
+		Map<Integer, List<Marker>> chunks;
+	}
+	
+	static List<Marker> extract(ChunkPos pos, NbtCompound chunkNbt)
+	{
+		final var result = new ArrayList<Marker>(0);
+		final var level = chunkNbt.getCompound("Level");
+		
+		final var blockEntities = level.getList("TileEntities", NbtType.COMPOUND);
+		for(int i = 0; i < blockEntities.size(); i++)
+		{
+			final var nbt = blockEntities.getCompound(i);
+			final var id = nbt.getString("id");
+			if(id.equals("minecraft:sign"))
+			{
+				final var lines = new ArrayList<String>(4);
+				for(int line = 1; line <= 4; line++)
+				{
+					final var text = getText(nbt.getString("Text" + line));
+					if(!text.isBlank()) lines.add(text.strip());
+				}
+				if(!lines.isEmpty()) result.add(new Marker("sign", nbt.getInt("x"), nbt.getInt("y"), nbt.getInt("z"), String.join("\n", lines)));
+			}
+			else if(id.equals("minecraft:banner") && nbt.contains("CustomName", NbtType.STRING))
+			{
+				// unnamed banners are decoration, same as with vanilla maps
+				final var name = getText(nbt.getString("CustomName"));
+				if(!name.isBlank()) result.add(new Marker("banner", nbt.getInt("x"), nbt.getInt("y"), nbt.getInt("z"), name));
+			}
+		}
+		
+		final var starts = level.getCompound("Structures").getCompound("Starts");
+		for(var key: starts.getKeys())
+		{
+			final var start = starts.getCompound(key);
+			if(start.getString("id").equals("INVALID")) continue;
+			
+			// starts are stored in the chunk they begin in, so the chunk's center is close enough
+			result.add(new Marker("structure", pos.getStartX() + 8, 0, pos.getStartZ() + 8, start.getString("id")));
+		}
+		
+		return result;
+	}
+	
+	private static String getText(String json)
+	{
+		if(json.isEmpty()) return "";
+		
+		try
+		{
+			final var text = Text.Serializer.fromJson(json);
+			return text == null ? "" : text.getString();
+		}
+		catch(Exception err)
+		{
+			return "";
+		}
+	}
+	
+	// Replaces the markers of the given chunks in a region's index. Chunks with no markers are dropped from it.
+	// `prefix` is the dimension's subdirectory, see RenderJob.Dimension.
+	static void update(String prefix, RegionPos regionPos, Map<ChunkPos, List<Marker>> markers)
+	{
+		final var file = getFile(prefix, regionPos);
+		final var index = new TreeMap<Integer, List<Marker>>();
+		String before = null;
+		if(file.exists())
+		{
+			try
+			{
+				before = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+				final var existing = gson.fromJson(before, RegionMarkers.class);
+				if(existing != null && existing.chunks != null) index.putAll(existing.chunks);
+			}
+			catch(Exception err)
+			{
+				BadMap.LOGGER.warn("failed to read marker index for region {}, rebuilding it", regionPos, err);
+			}
+		}
+		
+		for(var entry: markers.entrySet())
+		{
+			final var local = regionPos.chunkPosInRegion(entry.getKey());
+			final var key = local.z * 32 + local.x;
+			if(entry.getValue().isEmpty()) index.remove(key);
+			else index.put(key, entry.getValue());
+		}
+		
+		final var updated = new RegionMarkers();
+		updated.chunks = index;
+		final var json = gson.toJson(updated);
+		if(json.equals(before)) return;
+		
+		file.getParentFile().mkdirs();
+		Utils.writeAtomic(file, json.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static File getFile(String prefix, RegionPos pos)
+	{
+		return BadMap.CONFIG.bmapDir.resolve("markers").resolve(prefix + "%d_%d.json".formatted(pos.x(), pos.z())).toFile();
+	}
+}
@@ -6,7 +6,9 @@ import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import com.google.gson.Gson;
@@ -23,6 +25,7 @@ import com.google.gson.annotations.SerializedName;
 import org.apache.commons.io.FileUtils;
 
 import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 
 public class ModConfig
@@ -42,9 +45,54 @@ public class ModConfig
 	@SerializedName("Priority of worker threads. Recommend < 5 to keep gameplay smooth. Must be between " + Thread.MIN_PRIORITY + " and " + Thread.MAX_PRIORITY)
 	public int workerThreadPriority;
 	
+	@SerializedName("Executor for CPU-bound render work. `threadpool` is a fixed set of worker threads, `forkjoin` is a work-stealing pool of the same size")
+	public WorkerPool.Backend workerBackend;
+	
+	@SerializedName("Executor for blocking region file and tile IO. `shared` uses the render workers, `threadpool` a separate pool of maxIOThreads, `virtual` a virtual thread per task (Java 21+, otherwise falls back to `threadpool`)")
+	public WorkerPool.IOMode ioMode;
+	
+	@SerializedName("Number of IO threads when ioMode is `threadpool`. <= 0 uses twice the total cores")
+	public int maxIOThreads;
+	
+	@SerializedName("Reduce the number of active render workers while the server is lagging, pausing rendering entirely if need be")
+	public boolean throttleEnabled;
+	
+	@SerializedName("Average milliseconds per tick above which render workers are throttled. Ticks have a budget of 50ms")
+	public double throttleHighMspt;
+	
+	@SerializedName("Average milliseconds per tick below which throttled render workers are gradually restored")
+	public double throttleLowMspt;
+	
 	@SerializedName("Number of regions to render in parallel, if possible. <= 0 chooses by available memory")
 	public int maxParallelRegions;
 	
+	@SerializedName("Read chunks for rendering straight from region files on the render workers, rather than queueing each read on the server's single chunk IO thread")
+	public boolean directRegionReads;
+	
+	@SerializedName("Parse and render regions one row of chunks at a time rather than all at once, using far less memory per region")
+	public boolean rowStreamingRender;
+	
+	@SerializedName("Number of finished tiles that may be queued for writing before render workers wait on disk. <= 0 uses default of " + TileWriter.DEFAULT_QUEUE_SIZE)
+	public int tileWriterQueueSize;
+	
+	@SerializedName("Memory budget for decoded region images kept between incremental renders, in megabytes. Each region takes 1MB")
+	public int rasterCacheMegabytes;
+	
+	@SerializedName("Number of region images kept for reuse once rendered and written, rather than reallocated. Each takes 1MB, <= 0 disables")
+	public int rasterPoolSize;
+	
+	@SerializedName("Dimensions to render, e.g. `minecraft:the_nether`. Tiles of dimensions besides the overworld go in a subdirectory of tileDir named after them, e.g. `minecraft/the_nether`")
+	public List<String> dimensions;
+	
+	@SerializedName("Extra maps rendered alongside the surface, e.g. {\"name\": \"caves\", \"ceiling\": 0} shows the first floor below y=0, in the `caves` subdirectory of tileDir. Each costs extra column scans, but no extra chunk reads")
+	public List<RenderLayer> layers;
+	
+	@SerializedName("Split renders into shards of this many regions, which other BadMap instances sharing bmapDir and tileDir (e.g. servers started on a copy of the world) can claim with `/badmap render resume`. <= 0 disables")
+	public int shardRegions;
+	
+	@SerializedName("Seconds before a shard claimed by a worker that stopped responding may be taken over by another")
+	public int shardLeaseSeconds;
+	
 	@SerializedName("Path to cache directory, for storing things like discovery cache, manual markers, etc. Probably should not be web readable.")
 	public Path bmapDir;
 	
@@ -54,6 +102,27 @@ public class ModConfig
 	@SerializedName("List of block positions to begin chunk discovery from. If empty, will default to world spawnpoint.")
 	public List<BlockPos> discoverySeeds;
 	
+	@SerializedName("Serve the tile directory over HTTP from within the server, with hot tiles cached in memory")
+	public boolean httpEnabled;
+	
+	@SerializedName("Address for the HTTP server to listen on. Empty listens on all interfaces")
+	public String httpBindAddress;
+	
+	@SerializedName("Port for the HTTP server to listen on")
+	public int httpPort;
+	
+	@SerializedName("Number of HTTP server threads")
+	public int httpThreads;
+	
+	@SerializedName("Memory budget for cached tiles served over HTTP, in megabytes")
+	public int httpCacheMegabytes;
+	
+	@SerializedName("Times to render automatically, as a list of e.g. {\"when\": \"mon-fri 02:00-06:00\", \"mode\": \"incremental\"}. Days may be `*`, windows ending before they start run past midnight")
+	public List<RenderScheduler.Window> renderWindows;
+	
+	@SerializedName("Scheduled renders only run (and are paused again) while at most this many players are online")
+	public int renderWindowMaxPlayers;
+	
 	public ModConfig() {}
 	
 	public static ModConfig loadConfig()
@@ -98,6 +167,39 @@ public class ModConfig
 		if(config.workerThreadPriority > Thread.NORM_PRIORITY)
 			BadMap.LOGGER.warn("Requested worker thread priority of {} may severely impact game performance", config.workerThreadPriority);
 		
+		if(config.httpEnabled && (config.httpPort <= 0 || config.httpPort > 0xFFFF))
+			throw new IllegalArgumentException("HTTP port must be between 1 and 65535");
+		
+		if(config.throttleEnabled && config.throttleLowMspt >= config.throttleHighMspt)
+			throw new IllegalArgumentException("throttle low mspt must be less than high mspt");
+		
+		if(config.shardRegions > 0 && config.shardLeaseSeconds * 1000L < 3 * ShardLeases.RENEW_INTERVAL)
+			throw new IllegalArgumentException("shard lease must be at least %d seconds".formatted(3 * ShardLeases.RENEW_INTERVAL / 1000));
+		
+		if(config.renderWindows != null)
+			for(var window: config.renderWindows) window.parse();
+		
+		final var namespaces = new HashSet<String>();
+		if(config.dimensions != null)
+			for(var dimension: config.dimensions)
+			{
+				final var id = Identifier.tryParse(dimension);
+				if(id == null) throw new IllegalArgumentException("invalid dimension `%s`".formatted(dimension));
+				namespaces.add(id.getNamespace());
+			}
+		
+		if(config.layers != null)
+		{
+			final var names = new HashSet<String>();
+			for(var layer: config.layers)
+			{
+				layer.validate();
+				if(!names.add(layer.name)) throw new IllegalArgumentException("duplicate layer name `%s`".formatted(layer.name));
+				// would share a directory with dimensions' tiles
+				if(namespaces.contains(layer.name)) throw new IllegalArgumentException("layer name `%s` is a dimension namespace".formatted(layer.name));
+			}
+		}
+		
 		final var bmapDir = config.bmapDir.toFile();
 		if(!bmapDir.exists() && !bmapDir.mkdirs())
 			throw new IOException("Cache directory `%s` cannot be created".formatted(bmapDir.getPath()));
@@ -116,10 +218,32 @@ public class ModConfig
 		final var self = new ModConfig();
 		self.maxWorkerThreads = -1;
 		self.workerThreadPriority = 3;
+		self.workerBackend = WorkerPool.Backend.THREADPOOL;
+		self.ioMode = WorkerPool.IOMode.SHARED;
+		self.maxIOThreads = -1;
+		self.throttleEnabled = true;
+		self.throttleHighMspt = 40;
+		self.throttleLowMspt = 30;
 		self.maxParallelRegions = 2;
+		self.directRegionReads = true;
+		self.rowStreamingRender = false;
+		self.tileWriterQueueSize = TileWriter.DEFAULT_QUEUE_SIZE;
+		self.rasterCacheMegabytes = 64;
+		self.rasterPoolSize = 8;
+		self.dimensions = new ArrayList<>(List.of(RenderJob.Dimension.OVERWORLD));
+		self.layers = new ArrayList<>();
+		self.shardRegions = 0;
+		self.shardLeaseSeconds = 120;
 		self.bmapDir = serverDir.resolve("bmap");
 		self.tileDir = self.bmapDir.resolve("tiles");
 		self.discoverySeeds = Collections.emptyList();
+		self.httpEnabled = false;
+		self.httpBindAddress = "";
+		self.httpPort = 8100;
+		self.httpThreads = 2;
+		self.httpCacheMegabytes = 64;
+		self.renderWindows = new ArrayList<>();
+		self.renderWindowMaxPlayers = 0;
 		
 		return self;
 	}
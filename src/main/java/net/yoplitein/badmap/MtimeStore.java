@@ -0,0 +1,96 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Chunk modification times, kept beside the world rather than in chunk NBT
+// so that recording them never requires rewriting a chunk, and reading them never requires decompressing one.
+// One memory mapped file of 1024 longs per region, where 0 means unknown.
+// The same layout also records when each chunk was last saved (see savesForWorld), which RegionReader checks for pending writes.
+public class MtimeStore
+{
+	public static final long UNKNOWN = 0;
+	static final int REGION_BYTES = 32 * 32 * 8;
+	
+	private static final ConcurrentHashMap<String, MtimeStore> stores = new ConcurrentHashMap<>();
+	
+	private final String dir;
+	private final String dimension;
+	private final ConcurrentHashMap<RegionPos, LongBuffer> regions = new ConcurrentHashMap<>();
+	
+	private MtimeStore(String dir, String dimension)
+	{
+		this.dir = dir;
+		this.dimension = dimension;
+	}
+	
+	public static MtimeStore forWorld(ServerWorld world)
+	{
+		return forWorld("mtimes", world);
+	}
+	
+	// Times chunks were last serialized for saving, i.e. just before their write is queued.
+	public static MtimeStore savesForWorld(ServerWorld world)
+	{
+		return forWorld("saves", world);
+	}
+	
+	private static MtimeStore forWorld(String dir, ServerWorld world)
+	{
+		final var dimension = Utils.dimensionDirName(world);
+		return stores.computeIfAbsent(dir + "/" + dimension, key -> new MtimeStore(dir, dimension));
+	}
+	
+	public long get(ChunkPos pos)
+	{
+		final var region = getRegion(RegionPos.of(pos));
+		return region == null ? UNKNOWN : region.get(getIndex(pos));
+	}
+	
+	public void set(ChunkPos pos, long mtime)
+	{
+		final var region = getRegion(RegionPos.of(pos));
+		if(region != null) region.put(getIndex(pos), mtime);
+	}
+	
+	private static int getIndex(ChunkPos pos)
+	{
+		return (pos.z & 31) * 32 + (pos.x & 31);
+	}
+	
+	private @Nullable LongBuffer getRegion(RegionPos pos)
+	{
+		// chunks are loaded (e.g. spawn chunks) before the config is, those just get their mtime recorded on next save
+		if(BadMap.CONFIG == null) return null;
+		
+		return regions.computeIfAbsent(pos, regionPos -> {
+			final var file = getFile(regionPos);
+			file.getParentFile().mkdirs();
+			
+			try(final var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				// the mapping outlives the channel, and new files are zero-filled (i.e. all unknown)
+				return channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_BYTES).asLongBuffer();
+			}
+			catch(Exception err)
+			{
+				BadMap.LOGGER.error("failed to map chunk mtimes for region {}", regionPos, err);
+				return null;
+			}
+		});
+	}
+	
+	private File getFile(RegionPos pos)
+	{
+		return BadMap.CONFIG.bmapDir.resolve(dir).resolve(dimension).resolve("%d_%d.bin".formatted(pos.x(), pos.z())).toFile();
+	}
+}
@@ -0,0 +1,69 @@
+package net.yoplitein.badmap;
+
+// Helpers for the packed long arrays used by chunk NBT for heightmaps and section block states.
+// Since 1.16 entries never straddle two longs, so each long holds `64 / bits` entries, lowest bits first.
+// These are deliberately scalar: the Vector API is still an incubator module (jdk.incubator.vector), which must be added
+// with --add-modules both when compiling and on the server's command line, neither of which a mod controls.
+public class PackedArrays
+{
+	// Unpacks the first `count` entries of `data` into `out`.
+	public static void unpack(long[] data, int bits, int count, int[] out)
+	{
+		// the common palette sizes get loops with constant shifts, which the JIT unrolls
+		switch(bits)
+		{
+			case 4 -> unpack4(data, count, out);
+			case 8 -> unpack8(data, count, out);
+			default -> unpackAny(data, bits, count, out);
+		}
+	}
+	
+	private static void unpack4(long[] data, int count, int[] out)
+	{
+		final var words = Math.min(data.length, count >> 4);
+		for(int w = 0, i = 0; w < words; w++, i += 16)
+		{
+			final var word = data[w];
+			for(int j = 0; j < 16; j++)
+				out[i + j] = (int)(word >>> (j << 2)) & 0xF;
+		}
+		
+		if(words << 4 < count) unpackTail(data, 4, words, count, out);
+	}
+	
+	private static void unpack8(long[] data, int count, int[] out)
+	{
+		final var words = Math.min(data.length, count >> 3);
+		for(int w = 0, i = 0; w < words; w++, i += 8)
+		{
+			final var word = data[w];
+			for(int j = 0; j < 8; j++)
+				out[i + j] = (int)(word >>> (j << 3)) & 0xFF;
+		}
+		
+		if(words << 3 < count) unpackTail(data, 8, words, count, out);
+	}
+	
+	private static void unpackAny(long[] data, int bits, int count, int[] out)
+	{
+		unpackTail(data, bits, 0, count, out);
+	}
+	
+	// Unpacks entries starting from long `firstWord`.
+	private static void unpackTail(long[] data, int bits, int firstWord, int count, int[] out)
+	{
+		final var perLong = 64 / bits;
+		final var mask = (1L << bits) - 1;
+		
+		var i = firstWord * perLong;
+		for(int w = firstWord; w < data.length && i < count; w++)
+		{
+			var word = data[w];
+			for(int j = 0; j < perLong && i < count; j++, i++)
+			{
+				out[i] = (int)(word & mask);
+				word >>>= bits;
+			}
+		}
+	}
+}
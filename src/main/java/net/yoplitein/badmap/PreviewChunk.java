@@ -0,0 +1,100 @@
+package net.yoplitein.badmap;
+
+import java.util.HashMap;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtHelper;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.Heightmap;
+
+// Just enough of a chunk's NBT to render a preview: its heightmaps, and block states decoded only for the sections
+// that hold a column's top block. Much cheaper than ChunkSerializer.deserialize, which decodes (and lights) everything.
+class PreviewChunk
+{
+	final int bottomY;
+	final int[] surface = new int[256]; // y of the first air block above each column, as in Heightmap.get
+	final int[] floor = new int[256]; // same, but ignoring fluids
+	
+	private final NbtCompound level;
+	private final HashMap<Integer, Section> sections = new HashMap<>();
+	
+	private static record Section(BlockState[] palette, int[] states) {}
+	
+	// cached for absent sections, as computeIfAbsent doesn't cache null
+	private static final Section EMPTY = new Section(new BlockState[0], new int[0]);
+	
+	private PreviewChunk(NbtCompound level, int bottomY)
+	{
+		this.level = level;
+		this.bottomY = bottomY;
+	}
+	
+	// Returns null if the chunk is missing its heightmaps.
+	static @Nullable PreviewChunk of(NbtCompound chunkNbt, int bottomY, int worldHeight)
+	{
+		final var level = chunkNbt.getCompound("Level");
+		final var heightmaps = level.getCompound("Heightmaps");
+		final var surfaceKey = Heightmap.Type.WORLD_SURFACE.getName();
+		final var floorKey = Heightmap.Type.OCEAN_FLOOR.getName();
+		if(!heightmaps.contains(surfaceKey, NbtType.LONG_ARRAY) || !heightmaps.contains(floorKey, NbtType.LONG_ARRAY))
+			return null;
+		
+		final var self = new PreviewChunk(level, bottomY);
+		final var bits = MathHelper.log2DeBruijn(worldHeight + 1);
+		PackedArrays.unpack(heightmaps.getLongArray(surfaceKey), bits, 256, self.surface);
+		PackedArrays.unpack(heightmaps.getLongArray(floorKey), bits, 256, self.floor);
+		for(int i = 0; i < 256; i++)
+		{
+			self.surface[i] += bottomY;
+			self.floor[i] += bottomY;
+		}
+		
+		return self;
+	}
+	
+	int getSurface(int x, int z)
+	{
+		return surface[x + z * 16];
+	}
+	
+	int getFloor(int x, int z)
+	{
+		return floor[x + z * 16];
+	}
+	
+	BlockState getBlockState(int x, int y, int z)
+	{
+		final var section = sections.computeIfAbsent(y >> 4, this::decodeSection);
+		if(section == EMPTY) return Blocks.AIR.getDefaultState();
+		
+		final var index = section.states[(y & 15) << 8 | z << 4 | x];
+		return index < section.palette.length ? section.palette[index] : Blocks.AIR.getDefaultState();
+	}
+	
+	private Section decodeSection(int sectionY)
+	{
+		final var list = level.getList("Sections", NbtType.COMPOUND);
+		for(int i = 0; i < list.size(); i++)
+		{
+			final var nbt = list.getCompound(i);
+			if(nbt.getByte("Y") != sectionY) continue;
+			if(!nbt.contains("Palette", NbtType.LIST) || !nbt.contains("BlockStates", NbtType.LONG_ARRAY)) return EMPTY;
+			
+			final var paletteNbt = nbt.getList("Palette", NbtType.COMPOUND);
+			final var palette = new BlockState[paletteNbt.size()];
+			for(int j = 0; j < palette.length; j++)
+				palette[j] = NbtHelper.toBlockState(paletteNbt.getCompound(j));
+			
+			final var states = new int[4096];
+			PackedArrays.unpack(nbt.getLongArray("BlockStates"), Math.max(4, MathHelper.log2DeBruijn(palette.length)), 4096, states);
+			return new Section(palette, states);
+		}
+		
+		return EMPTY;
+	}
+}
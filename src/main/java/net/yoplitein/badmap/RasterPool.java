@@ -0,0 +1,70 @@
+package net.yoplitein.badmap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+// Reusable region rasters, so renders don't allocate a fresh 1MB image (a humongous object for G1) per region.
+// A raster is shared between the render that produced it, the raster cache and the tile writer,
+// so each holds a reference, and it only returns to the pool once all of them have released it.
+// Images that were never acquired from the pool (e.g. decoded PNGs) are ignored by retain/release.
+public class RasterPool
+{
+	static final int DIM = 512;
+	
+	private final ArrayDeque<BufferedImage> free = new ArrayDeque<>();
+	// weak, so rasters dropped without being released (e.g. by a failed render) are still collected
+	private final WeakHashMap<BufferedImage, Integer> refs = new WeakHashMap<>();
+	private int capacity = 0;
+	
+	public synchronized void setCapacity(int capacity)
+	{
+		this.capacity = Math.max(0, capacity);
+		while(free.size() > this.capacity) free.poll();
+	}
+	
+	// Returns a blank TYPE_4BYTE_ABGR raster, with one reference held by the caller.
+	public BufferedImage acquire()
+	{
+		BufferedImage img;
+		synchronized(this) { img = free.poll(); }
+		
+		if(img == null)
+			img = new BufferedImage(DIM, DIM, BufferedImage.TYPE_4BYTE_ABGR);
+		else
+			Arrays.fill(((DataBufferByte)img.getRaster().getDataBuffer()).getData(), (byte)0);
+		
+		synchronized(this) { refs.put(img, 1); }
+		return img;
+	}
+	
+	// Returns a pooled copy of `img`, which must be TYPE_4BYTE_ABGR, with one reference held by the caller.
+	public BufferedImage copyOf(BufferedImage img)
+	{
+		final var copy = acquire();
+		final var pixels = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+		System.arraycopy(pixels, 0, ((DataBufferByte)copy.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+		return copy;
+	}
+	
+	public synchronized void retain(BufferedImage img)
+	{
+		refs.computeIfPresent(img, (key, count) -> count + 1);
+	}
+	
+	public synchronized void release(BufferedImage img)
+	{
+		final var count = refs.get(img);
+		if(count == null) return;
+		if(count > 1)
+		{
+			refs.put(img, count - 1);
+			return;
+		}
+		
+		refs.remove(img);
+		if(free.size() < capacity) free.add(img);
+	}
+}
@@ -0,0 +1,129 @@
+package net.yoplitein.badmap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.util.math.ChunkPos;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Uncompressed copies of region rasters in the cache dir, so incremental renders can
+// recover previous pixels with a straight copy out of a mapped file rather than inflating the PNG.
+// Layout is a small header followed by the raw TYPE_4BYTE_ABGR pixel data.
+public class RasterStore
+{
+	static final int MAGIC = 0x424D5252; // BMRR
+	static final int HEADER_SIZE = 16; // magic, dimension, render time
+	static final int DIM = 512;
+	static final int DATA_SIZE = DIM * DIM * 4;
+	static final int CHUNK_ROW_SIZE = 16 * 4;
+	
+	// Sidecars mirror the tile directory's layout, e.g. `x_z.png` is kept at `rasters/x_z.raw`.
+	public static File getFile(String tileName)
+	{
+		return BadMap.CONFIG.bmapDir.resolve("rasters").resolve(tileName.replaceAll("\\.png$", ".raw")).toFile();
+	}
+	
+	// The returned raster comes from the pool, with a reference held by the caller.
+	public static @Nullable RenderJob.CachedRaster load(String tileName)
+	{
+		final var file = getFile(tileName);
+		if(file.length() != HEADER_SIZE + DATA_SIZE) return null;
+		
+		try(final var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			final var buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + DATA_SIZE);
+			if(buf.getInt() != MAGIC || buf.getInt() != DIM)
+			{
+				BadMap.LOGGER.warn("ignoring malformed raster sidecar {}", file.getPath());
+				return null;
+			}
+			final var renderedAt = buf.getLong();
+			
+			final var img = BadMap.RASTER_POOL.acquire();
+			buf.get(getPixels(img));
+			return new RenderJob.CachedRaster(img, renderedAt);
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to read raster sidecar {}", file.getPath(), err);
+			return null;
+		}
+	}
+	
+	// Updates the sidecar for `pos`, patching only the `changed` chunks in place if possible.
+	// A null `changed` rewrites the whole raster.
+	public static void store(RegionPos pos, String tileName, RenderJob.CachedRaster raster, @Nullable Collection<ChunkPos> changed)
+	{
+		final var file = getFile(tileName);
+		final var exists = file.length() == HEADER_SIZE + DATA_SIZE;
+		if(!exists) file.getParentFile().mkdirs();
+		
+		try(final var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			final var buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + DATA_SIZE);
+			final var pixels = getPixels(raster.img());
+			
+			// zero the render time until the pixels are consistent, so a crash midway makes the whole sidecar outdated
+			buf.putInt(0, MAGIC).putInt(4, DIM).putLong(8, 0);
+			
+			if(!exists || changed == null)
+				buf.put(HEADER_SIZE, pixels);
+			else
+				for(var chunkPos: changed)
+				{
+					final var posInRegion = pos.chunkPosInRegion(chunkPos);
+					for(int z = 0; z < 16; z++)
+					{
+						final var offset = ((16 * posInRegion.z + z) * DIM + 16 * posInRegion.x) * 4;
+						buf.put(HEADER_SIZE + offset, pixels, offset, CHUNK_ROW_SIZE);
+					}
+				}
+			
+			buf.putLong(8, raster.renderedAt());
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to write raster sidecar {}", file.getPath(), err);
+		}
+	}
+	
+	// Sets the render time of an existing sidecar, once the tile it was stored alongside has been written.
+	public static void stamp(String tileName, long renderedAt)
+	{
+		final var file = getFile(tileName);
+		if(file.length() != HEADER_SIZE + DATA_SIZE) return;
+		
+		try(final var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.write(ByteBuffer.allocate(8).putLong(0, renderedAt), 8);
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to stamp raster sidecar {}", file.getPath(), err);
+		}
+	}
+	
+	// Region rasters must be TYPE_4BYTE_ABGR so their backing array matches the sidecar layout.
+	public static BufferedImage toABGR(BufferedImage img)
+	{
+		if(img.getType() == BufferedImage.TYPE_4BYTE_ABGR) return img;
+		
+		final var converted = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+		final var gfx = converted.createGraphics();
+		gfx.drawImage(img, 0, 0, null);
+		gfx.dispose();
+		return converted;
+	}
+	
+	private static byte[] getPixels(BufferedImage img)
+	{
+		return ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	}
+}
@@ -0,0 +1,99 @@
+package net.yoplitein.badmap;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import net.minecraft.util.math.BlockPos;
+import net.yoplitein.badmap.RenderJob.RegionSet;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Orders regions so those players are looking at are rendered first:
+// regions near a player with changes since their last render jump the queue,
+// then everything else goes nearest first, by distance to a player or discovery seed in the region's dimension.
+// Regions of all dimensions share one queue, so they're interleaved rather than rendered one dimension after another.
+class RegionQueue
+{
+	static final long URGENT_DISTANCE = 768; // blocks from a region's center, i.e. roughly a player's own region and its neighbours
+	
+	private static record Entry(RegionSet set, boolean urgent, long distanceSq) {}
+	
+	private final PriorityQueue<Entry> queue;
+	
+	RegionQueue(List<RegionSet> regions)
+	{
+		queue = new PriorityQueue<>(
+			Math.max(1, regions.size()),
+			Comparator
+				.comparing((Entry entry) -> !entry.urgent)
+				.thenComparingLong(Entry::distanceSq)
+		);
+		
+		for(var set: regions)
+		{
+			final var dim = set.dim();
+			final var playerDistance = nearestSq(set.pos(), dim.playerPositions);
+			final var urgent = playerDistance <= URGENT_DISTANCE * URGENT_DISTANCE && isDirty(set);
+			queue.add(new Entry(set, urgent, Math.min(playerDistance, nearestSq(set.pos(), dim.seeds))));
+		}
+	}
+	
+	int size()
+	{
+		return queue.size();
+	}
+	
+	// Drains the queue in priority order, lazily, so consumers see each region only as they're ready for it.
+	// Ends once `stop` returns true, checked before polling so the queue still holds (and counts) every region not handed out.
+	Stream<RegionSet> stream(BooleanSupplier stop)
+	{
+		return Stream
+			.generate(() -> {
+				if(stop.getAsBoolean()) return null;
+				synchronized(queue) { return queue.poll(); }
+			})
+			.takeWhile(entry -> entry != null)
+			.map(entry -> {
+				if(entry.urgent) BadMap.LOGGER.trace("prioritizing changed region {} near a player", entry.set.pos());
+				return entry.set;
+			})
+		;
+	}
+	
+	private static long nearestSq(RegionPos pos, List<BlockPos> points)
+	{
+		final long centerX = pos.x() * 512 + 256;
+		final long centerZ = pos.z() * 512 + 256;
+		
+		var best = Long.MAX_VALUE;
+		for(var point: points)
+		{
+			final var dx = point.getX() - centerX;
+			final var dz = point.getZ() - centerZ;
+			best = Math.min(best, dx * dx + dz * dz);
+		}
+		return best;
+	}
+	
+	// Whether any chunk changed since the region was last rendered, going by cheap sources only (no decoding.)
+	private static boolean isDirty(RegionSet set)
+	{
+		final var tileName = set.dim().tileName(set.pos());
+		long renderedAt;
+		
+		final var cached = BadMap.RASTER_CACHE.get(tileName);
+		final var queued = cached == null ? BadMap.TILE_WRITER.getPending(tileName) : null;
+		if(cached != null)
+			renderedAt = cached.renderedAt();
+		else if(queued != null)
+			renderedAt = queued.renderedAt();
+		else
+			renderedAt = BadMap.CONFIG.tileDir.resolve(tileName).toFile().lastModified(); // 0 if never rendered
+		
+		for(var info: set.populatedChunks())
+			if(info.mtime() >= renderedAt) return true; // as in RenderJob.isChunkOutdated
+		return false;
+	}
+}
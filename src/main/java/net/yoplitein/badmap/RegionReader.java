@@ -0,0 +1,293 @@
+package net.yoplitein.badmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.dimension.DimensionType;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Reads chunk NBT straight from a dimension's region files, for discovery and parsing.
+// Vanilla's getNbt queues every read on the world's one IO worker thread, and inflates each chunk through a fresh stream stack;
+// here reads run on the calling thread, as positional reads into pooled direct buffers inflated by a pooled Inflater.
+// Chunks this can't read (saved since their last write, which is still queued; stored externally; torn or moved by a concurrent write)
+// throw, so the caller can fall back to vanilla.
+// Every save is recorded in MtimeStore.savesForWorld before its write is queued, so a chunk with no save time has no pending write either.
+// That's compared against the region's timestamp of the chunk's last write, rather than the chunk's mtime, as edits always precede the save.
+public class RegionReader
+{
+	static final int SECTOR_BYTES = 4096;
+	static final int MAX_OPEN_FILES = 64;
+	static final int MAX_POOLED_BUFFERS = 64;
+	
+	static final int COMPRESSION_DEFLATE = 2;
+	static final int COMPRESSION_NONE = 3;
+	
+	private static final ConcurrentLinkedQueue<Buffers> pool = new ConcurrentLinkedQueue<>();
+	
+	private final File dir;
+	private final MtimeStore saves;
+	private final LruCache<RegionPos, OpenFile> channels = new LruCache<>(MAX_OPEN_FILES, file -> 1, OpenFile::release);
+	
+	// The cache holds one reference and each read in progress another, so evicting a file doesn't close it under a read.
+	private static class OpenFile
+	{
+		final FileChannel channel;
+		private int refs = 1;
+		
+		OpenFile(FileChannel channel)
+		{
+			this.channel = channel;
+		}
+		
+		synchronized void retain()
+		{
+			refs++;
+		}
+		
+		synchronized void release()
+		{
+			if(--refs == 0) closeQuietly(channel);
+		}
+	}
+	
+	private static class Buffers
+	{
+		final Inflater inflater = new Inflater();
+		final ByteBuffer header = ByteBuffer.allocateDirect(4);
+		ByteBuffer compressed = ByteBuffer.allocateDirect(16 * SECTOR_BYTES);
+		byte[] inflated = new byte[256 * 1024];
+	}
+	
+	RegionReader(ServerWorld world)
+	{
+		this.dir = getRegionDir(world);
+		this.saves = MtimeStore.savesForWorld(world);
+	}
+	
+	// Returns null if the chunk has never been saved.
+	@Nullable NbtCompound read(ChunkPos pos) throws IOException
+	{
+		final var savedAt = saves.get(pos);
+		final var file = openFile(RegionPos.of(pos));
+		if(file == null) return missing(pos, savedAt);
+		
+		final var channel = file.channel;
+		final var bufs = acquire();
+		try
+		{
+			final var index = getIndex(pos);
+			final var location = readInt(channel, bufs.header, index * 4L);
+			if(location == 0) return missing(pos, savedAt);
+			
+			// timestamps only have whole seconds, so this misses a second save within the same second as a write (which is rare, saves being minutes apart)
+			final var timestamp = readInt(channel, bufs.header, SECTOR_BYTES + index * 4L) & 0xFFFFFFFFL; // seconds
+			if(savedAt != MtimeStore.UNKNOWN && timestamp < savedAt / 1000)
+				throw new IOException("chunk %s was saved since it was last written".formatted(pos));
+			
+			final var sectors = location & 0xFF;
+			if(bufs.compressed.capacity() < sectors * SECTOR_BYTES)
+				bufs.compressed = ByteBuffer.allocateDirect(sectors * SECTOR_BYTES);
+			final var buf = bufs.compressed.clear().limit(sectors * SECTOR_BYTES);
+			readFully(channel, buf, (long)(location >>> 8) * SECTOR_BYTES);
+			buf.flip();
+			
+			final var length = buf.getInt() - 1; // including the compression byte
+			final var compression = buf.get();
+			if(length < 0 || length > buf.remaining()) throw new IOException("chunk %s has bad length %d".formatted(pos, length));
+			buf.limit(buf.position() + length);
+			
+			final int size;
+			if(compression == COMPRESSION_DEFLATE)
+				size = inflate(bufs, buf);
+			else if(compression == COMPRESSION_NONE)
+			{
+				if(bufs.inflated.length < length) bufs.inflated = new byte[length];
+				buf.get(bufs.inflated, 0, length);
+				size = length;
+			}
+			else // gzip (never written by vanilla since 1.2) or stored in an external .mcc file
+				throw new IOException("chunk %s has unsupported compression type %d".formatted(pos, compression));
+			
+			final var nbt = NbtIo.read(new DataInputStream(new ByteArrayInputStream(bufs.inflated, 0, size)));
+			// the sectors may have been freed and reused for another chunk since the location was read
+			final var level = nbt.getCompound("Level");
+			if(level.getInt("xPos") != pos.x || level.getInt("zPos") != pos.z)
+				throw new IOException("read chunk %s where %s was expected".formatted(new ChunkPos(level.getInt("xPos"), level.getInt("zPos")), pos));
+			return nbt;
+		}
+		finally
+		{
+			release(bufs);
+			file.release();
+		}
+	}
+	
+	// When the chunk was last written to its region file in milliseconds (with seconds precision), or UNKNOWN if it never was.
+	long getWrittenAt(ChunkPos pos)
+	{
+		OpenFile file = null;
+		try
+		{
+			file = openFile(RegionPos.of(pos));
+			return file == null ? MtimeStore.UNKNOWN : readWrittenAt(file.channel, pos);
+		}
+		catch(IOException err)
+		{
+			return MtimeStore.UNKNOWN;
+		}
+		finally
+		{
+			if(file != null) file.release();
+		}
+	}
+	
+	// Same, for when there's no reader at hand, e.g. chunks loaded by the server.
+	public static long getWrittenAt(ServerWorld world, ChunkPos pos)
+	{
+		final var regionPos = RegionPos.of(pos);
+		final var file = new File(getRegionDir(world), "r.%d.%d.mca".formatted(regionPos.x(), regionPos.z()));
+		if(!file.exists()) return MtimeStore.UNKNOWN;
+		
+		try(final var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			return readWrittenAt(channel, pos);
+		}
+		catch(IOException err)
+		{
+			return MtimeStore.UNKNOWN;
+		}
+	}
+	
+	private static long readWrittenAt(FileChannel channel, ChunkPos pos) throws IOException
+	{
+		return (readInt(channel, ByteBuffer.allocate(4), SECTOR_BYTES + getIndex(pos) * 4L) & 0xFFFFFFFFL) * 1000;
+	}
+	
+	private static File getRegionDir(ServerWorld world)
+	{
+		final var root = world.getServer().getSavePath(WorldSavePath.ROOT).toFile();
+		return new File(DimensionType.getSaveDirectory(world.getRegistryKey(), root), "region");
+	}
+	
+	private static int getIndex(ChunkPos pos)
+	{
+		return (pos.z & 31) * 32 + (pos.x & 31);
+	}
+	
+	// A chunk with a save time has been saved, so if it isn't on disk its write is still queued.
+	private static @Nullable NbtCompound missing(ChunkPos pos, long savedAt) throws IOException
+	{
+		if(savedAt == MtimeStore.UNKNOWN) return null;
+		throw new IOException("chunk %s has not been written yet".formatted(pos));
+	}
+	
+	// Closes all open region files.
+	void close()
+	{
+		channels.setBudget(0);
+		channels.setBudget(MAX_OPEN_FILES);
+	}
+	
+	// The caller must release the returned file once done reading it.
+	private @Nullable OpenFile openFile(RegionPos pos) throws IOException
+	{
+		// under the cache's lock, so two threads never both open (and one then close) the same file,
+		// and the file can't be evicted between being looked up and retained
+		synchronized(channels)
+		{
+			final var cached = channels.get(pos);
+			if(cached != null)
+			{
+				cached.retain();
+				return cached;
+			}
+			
+			final var file = new File(dir, "r.%d.%d.mca".formatted(pos.x(), pos.z()));
+			if(!file.exists()) return null;
+			
+			// retained before it's cached, as the cache may drop it straight away (e.g. while closing)
+			final var opened = new OpenFile(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+			opened.retain();
+			channels.put(pos, opened);
+			return opened;
+		}
+	}
+	
+	private static int inflate(Buffers bufs, ByteBuffer input) throws IOException
+	{
+		final var inflater = bufs.inflater;
+		inflater.reset();
+		inflater.setInput(input);
+		
+		var size = 0;
+		try
+		{
+			while(!inflater.finished())
+			{
+				if(size == bufs.inflated.length) bufs.inflated = Arrays.copyOf(bufs.inflated, size * 2);
+				
+				final var inflated = inflater.inflate(bufs.inflated, size, bufs.inflated.length - size);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new EOFException("truncated chunk data");
+				size += inflated;
+			}
+		}
+		catch(DataFormatException err)
+		{
+			throw new IOException("corrupt chunk data", err);
+		}
+		return size;
+	}
+	
+	private static int readInt(FileChannel channel, ByteBuffer buf, long position) throws IOException
+	{
+		readFully(channel, buf.clear(), position);
+		return buf.getInt(0);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException
+	{
+		while(buf.hasRemaining())
+		{
+			final var read = channel.read(buf, position);
+			if(read < 0) throw new EOFException();
+			position += read;
+		}
+	}
+	
+	private static Buffers acquire()
+	{
+		final var bufs = pool.poll();
+		return bufs != null ? bufs : new Buffers();
+	}
+	
+	private static void release(Buffers bufs)
+	{
+		// the queue's size is O(n), but it's only ever about as long as there are IO threads
+		if(pool.size() < MAX_POOLED_BUFFERS) pool.add(bufs);
+		else bufs.inflater.end();
+	}
+	
+	private static void closeQuietly(FileChannel channel)
+	{
+		try { channel.close(); }
+		catch(IOException err) {}
+	}
+}
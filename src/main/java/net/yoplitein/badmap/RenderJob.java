@@ -3,14 +3,23 @@ package net.yoplitein.badmap;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.Lists;
+import com.google.gson.annotations.SerializedName;
+
 import org.jetbrains.annotations.Nullable;
 
 import net.fabricmc.fabric.api.util.NbtType;
@@ -19,10 +28,13 @@ import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.world.ServerChunkManager;
 import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3i;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.util.registry.RegistryKey;
 import net.minecraft.world.ChunkSerializer;
 import net.minecraft.world.Heightmap;
 import net.minecraft.world.chunk.Chunk;
@@ -38,121 +50,703 @@ public class RenderJob
 	// as opposed to transparency in chunks that have yet to be rendered (unwritten pixels are black)
 	static final int TRANSPARENCY_SENTINEL = 0xFF00FF;
 	
+	static final int SEARCH_RADIUS = 4; // in chunks, around each populated chunk found by discovery
+	static final int PROBE_BATCH_SIZE = 64;
+	
 	final MinecraftServer server;
-	final ServerWorld world;
-	final ServerChunkManager chunkManager;
+	final List<RenderLayer> layers;
+	private final Map<String, Dimension> dimensions = new LinkedHashMap<>(); // configured ones, plus any a resumed journal names
+	final AtomicInteger failedChunks = new AtomicInteger(0);
+	
+	private static volatile @Nullable RenderJob active;
+	private volatile boolean stopping = false;
+	private volatile boolean finished = false;
+	private volatile boolean failed = false;
+	volatile boolean scheduled = false; // started (or resumed) by RenderScheduler, see RenderJournal.isScheduled
+	private volatile @Nullable RenderJournal journal;
+	private boolean dryRun = false; // for benchmarks, skips writing mtimes, markers and tiles, and clearing failures
 	
 	public RenderJob(MinecraftServer server)
 	{
 		this.server = server;
-		this.world = server.getOverworld();
-		this.chunkManager = this.world.getChunkManager();
+		this.layers = BadMap.CONFIG.layers == null ? List.of() : List.copyOf(BadMap.CONFIG.layers);
+		
+		final var configured = BadMap.CONFIG.dimensions;
+		for(var id: configured == null || configured.isEmpty() ? List.of(Dimension.OVERWORLD) : configured)
+			getDimension(id);
 	}
 	
-	public void render(boolean incremental)
+	// A dimension being rendered, and its share of the render's state.
+	// Tiles (and cache files) of dimensions besides the overworld go in a subdirectory named after it, e.g. `minecraft/the_nether/`.
+	static class Dimension
 	{
-		BadMap.THREADPOOL.execute(() -> {
-			final var benchmark = new Utils.Benchmark();
+		static final String OVERWORLD = "minecraft:overworld";
+		static final int NO_CEILING = Integer.MAX_VALUE;
+		
+		final ServerWorld world;
+		final String id;
+		final String prefix; // empty for the overworld
+		final ServerChunkManager chunkManager;
+		final RegionReader regionReader;
+		final EdgeCache edges;
+		final List<BlockPos> playerPositions; // where players were when the render began, for prioritizing regions
+		final List<BlockPos> seeds;
+		final int ceiling; // columns start from the floor below this rather than from the heightmap, i.e. under the nether's bedrock roof
+		
+		Dimension(ServerWorld world)
+		{
+			this.world = world;
+			this.id = world.getRegistryKey().getValue().toString();
+			this.prefix = id.equals(OVERWORLD) ? "" : Utils.dimensionDirName(world) + "/";
+			this.chunkManager = world.getChunkManager();
+			this.regionReader = new RegionReader(world);
+			this.edges = new EdgeCache(prefix);
+			this.playerPositions = world.getPlayers().stream().map(player -> player.getBlockPos().toImmutable()).toList();
 			
-			benchmark.start();
-			final var populated = discoverChunks(); // FIXME: this needs to be cached to disk (maybe class too for markers?)
+			final var type = world.getDimension();
+			this.ceiling = type.hasCeiling() ? world.getBottomY() + type.getLogicalHeight() - 1 : NO_CEILING;
+			
+			final var configured = BadMap.CONFIG.discoverySeeds.isEmpty() ? List.of(world.getSpawnPos()) : BadMap.CONFIG.discoverySeeds;
+			if(prefix.isEmpty())
+				this.seeds = configured;
+			else
+			{
+				// seeds are given in overworld coordinates, and the origin and players catch e.g. the end's main island
+				final var scale = type.getCoordinateScale();
+				final var seeds = new ArrayList<BlockPos>();
+				for(var seed: configured) seeds.add(new BlockPos(seed.getX() / scale, seed.getY(), seed.getZ() / scale));
+				seeds.add(BlockPos.ORIGIN);
+				seeds.addAll(playerPositions);
+				this.seeds = seeds;
+			}
+		}
+		
+		String tileName(RegionPos pos)
+		{
+			return prefix + Utils.tileFilename(pos);
+		}
+		
+		String tileName(RenderLayer layer, RegionPos pos)
+		{
+			return prefix + layer.tileName(pos);
+		}
+	}
+	
+	// Returns null (with a warning) if the server has no such dimension.
+	// Must be called on the server thread for dimensions not yet resolved, as constructing one snapshots the world's players.
+	private synchronized @Nullable Dimension getDimension(String id)
+	{
+		final var existing = dimensions.get(id);
+		if(existing != null) return existing;
+		
+		final var parsed = Identifier.tryParse(id);
+		final var world = parsed == null ? null : server.getWorld(RegistryKey.of(Registry.WORLD_KEY, parsed));
+		if(world == null)
+		{
+			BadMap.LOGGER.warn("dimension `{}` does not exist, skipping it", id);
+			return null;
+		}
+		
+		final var dim = new Dimension(world);
+		dimensions.put(id, dim);
+		return dim;
+	}
+	
+	private synchronized List<Dimension> getDimensions()
+	{
+		return List.copyOf(dimensions.values());
+	}
+	
+	public enum Mode
+	{
+		@SerializedName(value = "full", alternate = "FULL") FULL,
+		@SerializedName(value = "incremental", alternate = "INCREMENTAL") INCREMENTAL,
+		@SerializedName(value = "preview", alternate = "PREVIEW") PREVIEW, // heightmaps only, for regions that haven't been rendered at all
+	}
+	
+	// The running render, if any. Only one runs at a time, as they share the journal.
+	public static @Nullable RenderJob getActive()
+	{
+		return active;
+	}
+	
+	// Stops feeding regions to the render. Regions already in progress still finish,
+	// and the journal is kept so the render can be resumed later.
+	public void stop()
+	{
+		stopping = true;
+	}
+	
+	// Whether the render ran to completion, i.e. wasn't stopped and didn't fail.
+	public boolean isFinished()
+	{
+		return finished;
+	}
+	
+	// Whether the render stopped because of an error, rather than finishing or being stopped.
+	public boolean hasFailed()
+	{
+		return failed;
+	}
+	
+	public void render(Mode mode)
+	{
+		if(RenderJournal.hasLiveLeases())
+		{
+			BadMap.LOGGER.error("Other workers are still rendering shards of the previous render, join it with /badmap render resume");
+			failed = true;
+			return;
+		}
+		
+		active = this;
+		
+		final var benchmark = new Utils.Benchmark();
+		final var renderStart = System.currentTimeMillis(); // chunks modified after this must be rerendered next time
+		
+		benchmark.start();
+		// every dimension is discovered at once, sharing the IO workers
+		// FIXME: this needs to be cached to disk
+		final var dims = getDimensions();
+		final var discoveries = dims.stream().map(this::discoverChunks).toList();
+		CompletableFuture.allOf(discoveries.toArray(CompletableFuture[]::new)).thenAcceptAsync(v -> {
 			benchmark.end();
-			BadMap.LOGGER.debug("perf: found {} chunks in {}ms", populated.size(), benchmark.msecs());
+			final var numChunks = discoveries.stream().mapToInt(discovery -> discovery.join().size()).sum();
+			BadMap.LOGGER.debug("perf: found {} chunks in {} dimensions in {}ms", numChunks, dims.size(), benchmark.msecs());
 			
 			benchmark.start();
-			final var regions = groupRegions(populated);
+			final var grouped = new ArrayList<RegionSet>();
+			for(int i = 0; i < dims.size(); i++)
+				grouped.addAll(groupRegions(dims.get(i), discoveries.get(i).join()));
+			// shards are runs of consecutive regions, so keep neighbours together (mostly sharing their edges)
+			if(BadMap.CONFIG.shardRegions > 0)
+				grouped.sort(
+					Comparator.<RegionSet, String>comparing(set -> set.dim.id)
+						.thenComparingInt(set -> set.pos.x())
+						.thenComparingInt(set -> set.pos.z())
+				);
+			final var journal = RenderJournal.begin(mode, renderStart, grouped);
+			if(scheduled) journal.markScheduled();
 			benchmark.end();
-			BadMap.LOGGER.debug("perf: grouped {} chunks into {} regions in {}ms", populated.size(), regions.size(), benchmark.msecs());
+			BadMap.LOGGER.debug("perf: grouped {} chunks into {} regions in {}ms", numChunks, grouped.size(), benchmark.msecs());
 			
-			final var numRegionsRendered = new AtomicInteger(0); // how many regions actually had any rendering to do
-			final var jobs = regions
-				.stream()
-				.map(set -> {
-					final var outFile = BadMap.CONFIG.tileDir.resolve(Utils.tileFilename(set.pos)).toFile();
-					BufferedImage prerendered = null;
-					if(incremental && outFile.exists()) prerendered = Utils.readPNG(outFile);
-					
-					return renderRegion(prerendered, outFile.lastModified(), set, incremental)
-						.thenAcceptAsync(img -> {
-							if(img != null)
-							{
-								Utils.writePNG(outFile, img);
-								numRegionsRendered.getAndIncrement();
-							}
-						}, BadMap.THREADPOOL)
-					;
-				})
-			;
-			
-			benchmark.start();
-			final var future = Utils.chainAsync(jobs, BadMap.CONFIG.maxParallelRegions);
-			future.exceptionallyAsync(err -> {
-				BadMap.LOGGER.error("Main render future completed exceptionally", err);
-				return null;
-			}, BadMap.THREADPOOL);
-			future.thenRunAsync(() -> {
-				benchmark.end();
-				BadMap.LOGGER.debug("perf: rendered {} (out of {}) regions in {}ms", numRegionsRendered.get(), regions.size(), benchmark.msecs());
-				BadMap.LOGGER.info("Render complete");
-			}, BadMap.THREADPOOL);
+			this.journal = journal;
+			if(journal.shards != null)
+			{
+				BadMap.LOGGER.info("Split render into {} shards, other workers may join with /badmap render resume", journal.shards.numShards);
+				finishRender(renderShards(grouped.stream().collect(Collectors.toMap(RegionSet::journalKey, set -> set))));
+			}
+			else
+				finishRender(renderRegions(grouped));
+		}, BadMap.THREADPOOL.io()).exceptionally(err -> {
+			BadMap.LOGGER.error("Render failed to start", err);
+			failed = true;
+			active = null;
+			return null;
 		});
 	}
 	
-	private Collection<ChunkInfo> discoverChunks()
+	// Carries on with a render that was interrupted by a restart, or joins a sharded one other workers are running.
+	// Returns whether there was one.
+	public boolean resume()
 	{
-		final var searchRadius = 4;
-		final var anvil = chunkManager.threadedAnvilChunkStorage;
-		final var visited = new HashMap<ChunkPos, ChunkInfo>(1 << 14);
-		final var queue = new LinkedList<ChunkPos>();
-		ChunkPos coord;
+		final var journal = RenderJournal.load();
+		if(journal == null) return false;
+		
+		active = this;
+		this.journal = journal;
+		if(scheduled) journal.markScheduled();
+		// here on the server thread, as the journal's regions are rebuilt on the IO workers
+		journal.dimensions().forEach(this::getDimension);
+		if(journal.shards != null)
+		{
+			BadMap.LOGGER.info("Joining sharded {} render of {} regions", journal.mode.name().toLowerCase(), journal.plannedCount());
+			finishRender(renderShards(Map.of()));
+			return true;
+		}
 		
-		final var seeds = BadMap.CONFIG.discoverySeeds;
-		if(seeds.isEmpty()) queue.add(new ChunkPos(world.getSpawnPos()));
-		else seeds.forEach(pos -> queue.add(new ChunkPos(pos)));
+		BadMap.THREADPOOL.io().execute(() -> {
+			final var regions = loadRegions(journal.remaining(), Map.of());
+			BadMap.LOGGER.info(
+				"Resuming interrupted {} render, {} of {} regions remaining",
+				journal.mode.name().toLowerCase(), regions.size(), journal.plannedCount()
+			);
+			finishRender(renderRegions(regions));
+		});
+		return true;
+	}
+	
+	// Keeps the render's shard leases alive, to be called every tick.
+	public void onTick()
+	{
+		final var journal = this.journal;
+		if(journal != null && journal.shards != null) journal.shards.renewIfDue(BadMap.THREADPOOL.io());
+	}
+	
+	// Rebuilds journaled regions from their planned chunks, except those in `known` (i.e. discovered by this job.)
+	private List<RegionSet> loadRegions(List<RenderJournal.Planned> planned, Map<String, RegionSet> known)
+	{
+		final var benchmark = new Utils.Benchmark();
 		
-		while((coord = queue.poll()) != null)
+		benchmark.start();
+		final var regions = new ArrayList<RegionSet>();
+		var numChunks = 0;
+		for(var region: planned)
 		{
-			if(visited.containsKey(coord)) continue;
+			final var set = known.get(RenderJournal.key(region.dimension(), region.pos()));
+			if(set != null)
+			{
+				regions.add(set);
+				continue;
+			}
 			
-			NbtCompound chunkNBT;
-			try
+			final var dim = getDimension(region.dimension());
+			if(dim == null) continue;
+			
+			final var chunks = new ArrayList<ChunkInfo>(region.chunks().size());
+			for(var pos: region.chunks())
 			{
-				chunkNBT = anvil.getNbt(coord);
+				final var info = loadChunkInfo(dim, pos);
+				if(info != null) chunks.add(info);
 			}
-			catch(Exception err)
+			numChunks += chunks.size();
+			if(!chunks.isEmpty()) regions.add(new RegionSet(dim, region.pos(), chunks));
+		}
+		benchmark.end();
+		
+		if(numChunks > 0) BadMap.LOGGER.debug("perf: reloaded {} chunks from render journal in {}ms", numChunks, benchmark.msecs());
+		return regions;
+	}
+	
+	// Claims and renders shards until none are left, waiting on any leased to other workers in case they die.
+	// Completes with the number of regions left unrendered in the last shard, if stopped.
+	private CompletableFuture<Integer> renderShards(Map<String, RegionSet> known)
+	{
+		final var journal = this.journal;
+		if(stopping) return CompletableFuture.completedFuture(0);
+		
+		return CompletableFuture.supplyAsync(journal::claimShard, BadMap.THREADPOOL.io()).thenComposeAsync(shard -> {
+			if(shard < 0)
 			{
-				chunkNBT = null;
+				if(stopping || journal.isComplete()) return CompletableFuture.completedFuture(0);
+				
+				// the rest are leased to other workers, so wait to see whether they finish or their leases expire
+				final var delay = CompletableFuture.delayedExecutor(ShardLeases.POLL_INTERVAL, TimeUnit.MILLISECONDS, BadMap.THREADPOOL.io());
+				return CompletableFuture.runAsync(() -> {}, delay).thenCompose(v -> renderShards(known));
 			}
 			
-			if(ChunkSerializer.getChunkType(chunkNBT) != ChunkType.LEVELCHUNK) chunkNBT = null;
+			final var regions = loadRegions(journal.remaining(shard), known);
+			BadMap.LOGGER.info("Rendering shard {} of {} ({} regions)", shard + 1, journal.shards.numShards, regions.size());
+			return renderRegions(regions).thenComposeAsync(left -> {
+				if(stopping) return CompletableFuture.completedFuture(left);
+				
+				// so workers rendering neighbouring shards see this one's edges and tiles
+				getDimensions().forEach(dim -> dim.edges.flush());
+				journal.publishManifest();
+				journal.shards.complete(shard);
+				return renderShards(known);
+			}, BadMap.THREADPOOL.io());
+		}, BadMap.THREADPOOL.io());
+	}
+	
+	// Completes with the number of regions left unrendered, if stopped.
+	private CompletableFuture<Integer> renderRegions(List<RegionSet> grouped)
+	{
+		final var journal = this.journal;
+		final var mode = journal.mode;
+		final var renderStart = journal.renderStart;
+		final var incremental = mode == Mode.INCREMENTAL;
+		final var benchmark = new Utils.Benchmark();
+		final var regions = new RegionQueue(grouped);
+		final var numRegions = regions.size();
+		
+		final var numRegionsRendered = new AtomicInteger(0); // how many regions actually had any rendering to do
+		final var tileWrites = new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+		final var jobs = regions
+			.stream(() -> stopping)
+			.map(set -> {
+				final var dim = set.dim;
+				final var tileName = dim.tileName(set.pos);
+				
+				final CompletableFuture<@Nullable RenderedRegion> rendered;
+				if(mode == Mode.PREVIEW && isRendered(tileName))
+					rendered = CompletableFuture.completedFuture(null);
+				// heightmaps would only show the roof of a dimension with a ceiling, so those get a full render instead
+				else if(mode == Mode.PREVIEW && dim.ceiling == Dimension.NO_CEILING)
+					// stamped with time 0 so every chunk is outdated, and the next incremental render refines the whole region
+					rendered = renderPreviewRegion(set).thenApply(img -> new RenderedRegion(new CachedRaster(img, 0), List.of(), null));
+				else
+					rendered = CompletableFuture
+						.supplyAsync(() -> loadRasters(dim, set.pos, incremental), BadMap.THREADPOOL.io())
+						.thenCompose(rasters -> renderRegion(
+							rasters.prerendered == null ? null : rasters.prerendered.img(),
+							rasters.prerendered == null ? 0 : rasters.prerendered.renderedAt(),
+							rasters.layers, set, incremental
+						).thenApply(img -> {
+							if(img == null)
+							{
+								// already up to date, so this job's references to the prerendered rasters go unused
+								BadMap.RASTER_POOL.release(rasters.prerendered.img());
+								rasters.layers.forEach(BadMap.RASTER_POOL::release);
+								return null;
+							}
+							
+							return new RenderedRegion(
+								new CachedRaster(img, renderStart),
+								rasters.layers.stream().map(layer -> new CachedRaster(layer, renderStart)).toList(),
+								// populatedChunks has been narrowed to just the rerendered chunks by now
+								rasters.prerendered != null ? set.populatedChunks.stream().map(ChunkInfo::pos).toList() : null
+							);
+						}))
+					;
+				
+				return rendered.thenAcceptAsync(region -> {
+					// renewed here too, as ticks may stall for longer than leases last
+					if(journal.shards != null) journal.shards.renewIfDue(Runnable::run);
+					
+					if(region == null)
+					{
+						journal.complete(dim.id, set.pos);
+						return;
+					}
+					
+					final var writes = new ArrayList<CompletableFuture<Void>>(1 + region.layers.size());
+					writes.add(storeRaster(set.pos, tileName, region.raster, region.changed));
+					for(int i = 0; i < region.layers.size(); i++)
+						writes.add(storeRaster(set.pos, dim.tileName(layers.get(i), set.pos), region.layers.get(i), region.changed));
+					
+					// only journaled once on disk, so an interrupted write is redone on resume
+					tileWrites.add(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).thenRun(() -> journal.complete(dim.id, set.pos)));
+					numRegionsRendered.getAndIncrement();
+				}, BadMap.THREADPOOL.io());
+			})
+		;
+		
+		benchmark.start();
+		return Utils.chainAsync(jobs, BadMap.CONFIG.maxParallelRegions)
+			.thenCompose(v -> CompletableFuture.allOf(tileWrites.toArray(CompletableFuture[]::new)))
+			.thenApply(v -> {
+				benchmark.end();
+				BadMap.LOGGER.debug("perf: rendered {} (out of {}) regions in {}ms", numRegionsRendered.get(), numRegions, benchmark.msecs());
+				return regions.size();
+			})
+		;
+	}
+	
+	private void finishRender(CompletableFuture<Integer> rendered)
+	{
+		final var journal = this.journal;
+		rendered.whenCompleteAsync((left, err) -> {
+			final var dims = getDimensions();
+			dims.forEach(dim -> dim.regionReader.close());
+			if(err != null)
+			{
+				BadMap.LOGGER.error("Main render future completed exceptionally", err);
+				if(journal.shards != null) journal.shards.releaseAll();
+				failed = true;
+				active = null;
+				return;
+			}
+			
+			dims.forEach(dim -> dim.edges.flush());
+			journal.publishManifest();
+			if(failedChunks.get() > 0)
+				BadMap.LOGGER.warn("{} chunks could not be rendered, see /badmap failures", failedChunks.get());
 			
-			if(chunkNBT == null)
+			if(stopping)
 			{
-				visited.put(coord, null);
-				continue;
+				if(journal.shards != null)
+				{
+					journal.shards.releaseAll();
+					BadMap.LOGGER.info("Render paused, unfinished shards are left to other workers or to resume later");
+				}
+				else
+					BadMap.LOGGER.info("Render paused, {} regions left to resume later", left);
 			}
 			else
 			{
-				final var level = chunkNBT.getCompound("Level");
-				final var mtime = level.contains("bm__mtime", NbtType.LONG) ? level.getLong("bm__mtime") : System.currentTimeMillis();
-				visited.put(coord, new ChunkInfo(coord, mtime, chunkNBT));
+				if(journal.isComplete()) journal.finish();
+				finished = true;
+				BadMap.LOGGER.info("Render complete");
+			}
+			active = null;
+		}, BadMap.THREADPOOL);
+	}
+	
+	// Times each stage of a render over the chunks within `radius` of `center`, without writing anything.
+	// Runs on its own thread, as it waits on each stage and the workers may be too throttled to spare one.
+	public void bench(ServerWorld world, ChunkPos center, int radius)
+	{
+		final var dim = getDimension(world.getRegistryKey().getValue().toString());
+		active = this;
+		dryRun = true;
+		final var thread = new Thread(() -> {
+			try { runBench(dim, center, radius); }
+			catch(Exception err) { BadMap.LOGGER.error("benchmark failed", err); }
+			finally
+			{
+				dim.regionReader.close();
+				active = null;
+			}
+		}, "BM-bench");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void runBench(Dimension dim, ChunkPos center, int radius)
+	{
+		final var side = 2 * radius + 1;
+		BadMap.LOGGER.info(
+			"Benchmarking {}x{} chunks around {} in {} with {} workers and {} parallel regions",
+			side, side, center, dim.id, BadMap.THREADPOOL.parallelism(), BadMap.CONFIG.maxParallelRegions
+		);
+		
+		// same work discoverChunks does per chunk, minus the search
+		var stats = BenchStats.start();
+		final var populated = new ArrayList<ChunkInfo>(side * side);
+		for(int x = center.x - radius; x <= center.x + radius; x++)
+			for(int z = center.z - radius; z <= center.z + radius; z++)
+			{
+				final var info = loadChunkInfo(dim, new ChunkPos(x, z));
+				if(info != null) populated.add(info);
+			}
+		stats.report("discover", populated.size(), "chunks");
+		if(populated.isEmpty()) return;
+		
+		final var regions = groupRegions(dim, populated);
+		final var parallel = BadMap.CONFIG.maxParallelRegions;
+		
+		stats = BenchStats.start();
+		final var parsed = new ConcurrentHashMap<RegionPos, Map<ChunkPos, Chunk>>();
+		Utils.chainAsync(regions.stream().map(set -> parseChunks(set).thenAccept(chunks -> parsed.put(set.pos, chunks))), parallel).join();
+		stats.report("parse", populated.size(), "chunks");
+		
+		stats = BenchStats.start();
+		final var images = new ConcurrentLinkedQueue<BufferedImage>();
+		Utils.chainAsync(regions.stream().map(set -> {
+			final var img = BadMap.RASTER_POOL.acquire();
+			final var layerImgs = layers.stream().map(layer -> BadMap.RASTER_POOL.acquire()).toList();
+			images.add(img);
+			images.addAll(layerImgs);
+			final var chunks = parsed.get(set.pos);
+			return renderParsed(dim, img, layerImgs, set.pos, chunks, chunks, new ConcurrentHashMap<>());
+		}), parallel).join();
+		stats.report("render", populated.size(), "chunks");
+		parsed.clear();
+		
+		stats = BenchStats.start();
+		final var encodedBytes = new AtomicLong(0);
+		Utils.chainAsync(images.stream().map(img -> CompletableFuture.runAsync(
+			() -> {
+				encodedBytes.addAndGet(Utils.encodePNG(img).length);
+				BadMap.RASTER_POOL.release(img);
+			},
+			BadMap.THREADPOOL
+		)), parallel).join();
+		final var secs = stats.report("encode", images.size(), "tiles");
+		BadMap.LOGGER.info("bench encode: {} MB ({} MB/s)", "%.1f".formatted(encodedBytes.get() / 1048576.0), "%.1f".formatted(encodedBytes.get() / 1048576.0 / secs));
+		
+		BadMap.LOGGER.info("Benchmark complete");
+	}
+	
+	private void chunkFailed(Dimension dim, ChunkPos pos, String stage, Exception err)
+	{
+		failedChunks.getAndIncrement();
+		BadMap.FAILURES.record(dim.id, pos, stage, err);
+		// the region is still stamped with this render's start, so the chunk must look modified since to be retried
+		if(!dryRun) MtimeStore.forWorld(dim.world).set(pos, System.currentTimeMillis());
+	}
+	
+	// Hands a freshly rendered raster (and the caller's reference to it) off to the sidecar, raster cache and tile writer.
+	// The render time is only recorded (in the sidecar and cache) once the tile is on disk,
+	// so a crash or failed write leaves the region outdated rather than its tile stale.
+	private static CompletableFuture<Void> storeRaster(RegionPos pos, String tileName, CachedRaster raster, @Nullable List<ChunkPos> changed)
+	{
+		final var img = raster.img();
+		RasterStore.store(pos, tileName, new CachedRaster(img, 0), changed);
+		BadMap.RASTER_POOL.retain(img); // for the cache, released on eviction
+		final var written = BadMap.TILE_WRITER.submit(tileName, img, raster.renderedAt());
+		BadMap.RASTER_POOL.release(img); // the cache and writer hold their own references now
+		
+		return written.whenComplete((v, err) -> {
+			if(err != null)
+			{
+				BadMap.RASTER_POOL.release(img);
+				return;
 			}
 			
-			for(int dx = -searchRadius; dx < searchRadius + 1; dx++)
-				for(int dz = -searchRadius; dz < searchRadius + 1; dz++)
+			RasterStore.stamp(tileName, raster.renderedAt());
+			BadMap.RASTER_CACHE.put(tileName, raster);
+		});
+	}
+	
+	// Rasters for a region's render to draw into: its previous render if incremental (and every layer has one), otherwise blank.
+	private RegionRasters loadRasters(Dimension dim, RegionPos pos, boolean incremental)
+	{
+		if(incremental)
+		{
+			final var prerendered = loadPrerendered(dim.tileName(pos));
+			if(prerendered != null)
+			{
+				final var layerRasters = new ArrayList<BufferedImage>(layers.size());
+				for(var layer: layers)
+				{
+					final var layerRaster = loadPrerendered(dim.tileName(layer, pos));
+					if(layerRaster == null) break;
+					layerRasters.add(layerRaster.img());
+				}
+				if(layerRasters.size() == layers.size()) return new RegionRasters(prerendered, layerRasters);
+				
+				// a layer that was never rendered (e.g. newly configured) needs the whole region rendered
+				BadMap.RASTER_POOL.release(prerendered.img());
+				layerRasters.forEach(BadMap.RASTER_POOL::release);
+			}
+		}
+		
+		return new RegionRasters(null, layers.stream().map(layer -> BadMap.RASTER_POOL.acquire()).toList());
+	}
+	
+	// The returned raster has a reference held by the caller, see RasterPool.
+	// It's always the caller's own copy, as the render patches it in place.
+	private static @Nullable CachedRaster loadPrerendered(String tileName)
+	{
+		// prefer rasters still in memory (cached, or queued for writing), then the raw sidecar,
+		// and only decode the tile itself as a last resort (i.e. rendered before sidecars existed)
+		synchronized(BadMap.RASTER_CACHE)
+		{
+			// under the cache's lock, so it can't be evicted back into the pool in between
+			final var cached = BadMap.RASTER_CACHE.get(tileName);
+			if(cached != null) return new CachedRaster(BadMap.RASTER_POOL.copyOf(cached.img()), cached.renderedAt());
+		}
+		
+		// the writer may be encoding this one right now
+		final var queued = BadMap.TILE_WRITER.retainPending(tileName);
+		if(queued != null)
+		{
+			final var copy = BadMap.RASTER_POOL.copyOf(queued.img());
+			BadMap.RASTER_POOL.release(queued.img());
+			return new CachedRaster(copy, queued.renderedAt());
+		}
+		
+		final var stored = RasterStore.load(tileName);
+		if(stored != null) return stored;
+		
+		final var outFile = BadMap.CONFIG.tileDir.resolve(tileName).toFile();
+		if(!outFile.exists()) return null;
+		return new CachedRaster(RasterStore.toABGR(Utils.readPNG(outFile)), outFile.lastModified());
+	}
+	
+	private static boolean isRendered(String tileName)
+	{
+		return
+			BadMap.RASTER_CACHE.get(tileName) != null ||
+			BadMap.TILE_WRITER.getPending(tileName) != null ||
+			RasterStore.getFile(tileName).exists() ||
+			BadMap.CONFIG.tileDir.resolve(tileName).toFile().exists()
+		;
+	}
+	
+	// Flood fills outward from the seeds, probing every chunk within SEARCH_RADIUS of a populated one.
+	// Level-synchronous: each level's probes are grouped by region file and spread across the IO workers,
+	// which queue up the next level as they go, claiming each probe through the shared visited set.
+	private CompletableFuture<Collection<ChunkInfo>> discoverChunks(Dimension dim)
+	{
+		final var visited = ConcurrentHashMap.<ChunkPos>newKeySet(1 << 14);
+		final var found = new ConcurrentHashMap<ChunkPos, ChunkInfo>(1 << 14);
+		final var seeds = new ArrayList<ChunkPos>();
+		for(var seed: dim.seeds)
+		{
+			final var pos = new ChunkPos(seed);
+			if(visited.add(pos)) seeds.add(pos);
+		}
+		
+		return discoverLevel(dim, seeds, visited, found).thenApply(v -> found.values());
+	}
+	
+	private CompletableFuture<Void> discoverLevel(Dimension dim, Collection<ChunkPos> probes, Set<ChunkPos> visited, Map<ChunkPos, ChunkInfo> found)
+	{
+		if(probes.isEmpty()) return CompletableFuture.completedFuture(null);
+		
+		final var next = new ConcurrentLinkedQueue<ChunkPos>();
+		final var tasks = probeBatches(probes)
+			.stream()
+			.map(batch -> CompletableFuture.runAsync(() -> {
+				for(var pos: batch)
 				{
-					final var otherCoord = new ChunkPos(coord.x + dx, coord.z + dz);
-					if(dx == 0 && dz == 0 || visited.containsKey(otherCoord)) continue;
-					queue.add(otherCoord);
+					final var info = loadChunkInfo(dim, pos);
+					if(info == null) continue;
+					found.put(pos, info);
+					
+					for(int dx = -SEARCH_RADIUS; dx < SEARCH_RADIUS + 1; dx++)
+						for(int dz = -SEARCH_RADIUS; dz < SEARCH_RADIUS + 1; dz++)
+						{
+							final var otherPos = new ChunkPos(pos.x + dx, pos.z + dz);
+							if(visited.add(otherPos)) next.add(otherPos);
+						}
 				}
+			}, BadMap.THREADPOOL.io()))
+			.toArray(CompletableFuture[]::new)
+		;
+		
+		return CompletableFuture.allOf(tasks).thenComposeAsync(v -> discoverLevel(dim, next, visited, found), BadMap.THREADPOOL.io());
+	}
+	
+	// Groups probes by region file, in the order of its header, so each batch reads from one file.
+	// Big groups are split, so a frontier within just a few regions still spreads across workers.
+	private static List<List<ChunkPos>> probeBatches(Collection<ChunkPos> probes)
+	{
+		final var regions = new HashMap<RegionPos, List<ChunkPos>>();
+		for(var pos: probes)
+			regions.computeIfAbsent(RegionPos.of(pos), regionPos -> new ArrayList<>()).add(pos);
+		
+		final var batches = new ArrayList<List<ChunkPos>>();
+		for(var list: regions.values())
+		{
+			list.sort(Comparator.<ChunkPos>comparingInt(pos -> pos.z).thenComparingInt(pos -> pos.x));
+			batches.addAll(Lists.partition(list, PROBE_BATCH_SIZE));
+		}
+		return batches;
+	}
+	
+	// Reads a chunk from its region file, returning null if it doesn't exist or hasn't finished generating.
+	private @Nullable ChunkInfo loadChunkInfo(Dimension dim, ChunkPos pos)
+	{
+		NbtCompound chunkNBT = null;
+		var direct = BadMap.CONFIG.directRegionReads;
+		if(direct)
+		{
+			try { chunkNBT = dim.regionReader.read(pos); }
+			catch(Exception err) { direct = false; } // e.g. not written yet, which only vanilla's IO worker knows about
 		}
 		
-		visited.entrySet().removeIf(entry -> entry.getValue() == null);
+		if(!direct)
+		{
+			try
+			{
+				chunkNBT = dim.chunkManager.threadedAnvilChunkStorage.getNbt(pos);
+			}
+			catch(Exception err)
+			{
+				chunkNBT = null;
+			}
+		}
 		
-		return visited.values();
+		if(chunkNBT == null || ChunkSerializer.getChunkType(chunkNBT) != ChunkType.LEVELCHUNK) return null;
+		
+		final var mtimes = MtimeStore.forWorld(dim.world);
+		var mtime = mtimes.get(pos);
+		if(mtime == MtimeStore.UNKNOWN)
+		{
+			// not loaded since mtimes moved out of NBT, so it hasn't been modified since it was last written
+			// recorded now so it isn't treated as modified on every render
+			final var level = chunkNBT.getCompound("Level");
+			mtime = level.contains("bm__mtime", NbtType.LONG) ? level.getLong("bm__mtime") : dim.regionReader.getWrittenAt(pos);
+			if(mtime == MtimeStore.UNKNOWN) mtime = System.currentTimeMillis();
+			if(!dryRun) mtimes.set(pos, mtime);
+		}
+		return new ChunkInfo(pos, mtime, chunkNBT);
 	}
 	
-	private static List<RegionSet> groupRegions(Collection<ChunkInfo> populated)
+	private static List<RegionSet> groupRegions(Dimension dim, Collection<ChunkInfo> populated)
 	{
 		final var regions = new HashMap<RegionPos, List<ChunkInfo>>(32);
 		
@@ -173,12 +767,13 @@ public class RenderJob
 		return regions
 			.entrySet()
 			.stream()
-			.map(entry -> new RegionSet(entry.getKey(), entry.getValue()))
+			.map(entry -> new RegionSet(dim, entry.getKey(), entry.getValue()))
 			.collect(Collectors.toList())
 		;
 	}
 	
-	private CompletableFuture<@Nullable BufferedImage> renderRegion(@Nullable BufferedImage prerendered, long imageMtime, RegionSet set, boolean incremental)
+	// Layers are drawn into `layerImgs`, which must already hold their previous render when `prerendered` is given.
+	private CompletableFuture<@Nullable BufferedImage> renderRegion(@Nullable BufferedImage prerendered, long imageMtime, List<BufferedImage> layerImgs, RegionSet set, boolean incremental)
 	{
 		final var benchmark = new Utils.Benchmark();
 		final var regionPos = set.pos;
@@ -195,6 +790,8 @@ public class RenderJob
 			
 			if(sizeNow == 0) return CompletableFuture.completedFuture(null);
 		}
+		if(BadMap.CONFIG.rowStreamingRender) return renderRegionRows(prerendered, layerImgs, set);
+		
 		final var imgFuture = new CompletableFuture<BufferedImage>();
 		
 		final var allChunksFuture = parseChunks(set);
@@ -208,31 +805,10 @@ public class RenderJob
 			benchmark.end();
 			BadMap.LOGGER.debug("perf: parsed {} chunks in {}ms", allChunks.size(), benchmark.msecs());
 			
-			final var chunks = allChunks
-				.entrySet()
-				.stream()
-				.map(pair -> {
-					final var pos = pair.getKey();
-					final var north = new ChunkPos(pos.x, pos.z - 1);
-					return new ChunkPair(pair.getValue(), allChunks.getOrDefault(north, null));
-				})
-				.collect(Collectors.toList())
-			;
-			benchmark.end();
-			
-			final var img = prerendered != null ? prerendered : new BufferedImage(512, 512, BufferedImage.TYPE_4BYTE_ABGR);
-			final var tasks = Utils.workerBatches(chunks)
-				.stream()
-				.map(batch -> CompletableFuture.runAsync(
-					() -> batch.forEach(pair -> renderChunk(img, regionPos, pair.main, pair.toNorth)),
-					BadMap.THREADPOOL
-				))
-				.toArray(CompletableFuture[]::new)
-			;
-			
-			final var chunksFuture = CompletableFuture.allOf(tasks);
+			final var img = prerendered != null ? prerendered : BadMap.RASTER_POOL.acquire();
 			
 			benchmark.start();
+			final var chunksFuture = renderParsed(set.dim, img, layerImgs, regionPos, allChunks, allChunks, new ConcurrentHashMap<>());
 			chunksFuture.exceptionallyAsync(err -> {
 				BadMap.LOGGER.trace("chunksFuture exception", err);
 				imgFuture.completeExceptionally(err);
@@ -240,7 +816,7 @@ public class RenderJob
 			}, BadMap.THREADPOOL);
 			chunksFuture.thenRunAsync(() -> {
 				benchmark.end();
-				BadMap.LOGGER.debug("perf: rendered region ({} chunks) in {}ms", chunks.size(), benchmark.msecs());
+				BadMap.LOGGER.debug("perf: rendered region ({} chunks) in {}ms", allChunks.size(), benchmark.msecs());
 				imgFuture.complete(img);
 			}, BadMap.THREADPOOL);
 		}, BadMap.THREADPOOL);
@@ -248,23 +824,128 @@ public class RenderJob
 		return imgFuture;
 	}
 	
+	// Like renderRegion, but parsing and rendering one row of chunks at a time, north to south,
+	// so only a few rows of parsed chunks are held at once rather than the whole region.
+	private CompletableFuture<@Nullable BufferedImage> renderRegionRows(@Nullable BufferedImage prerendered, List<BufferedImage> layerImgs, RegionSet set)
+	{
+		final var benchmark = new Utils.Benchmark();
+		final var img = prerendered != null ? prerendered : BadMap.RASTER_POOL.acquire();
+		final var markers = new ConcurrentHashMap<ChunkPos, List<MarkerIndex.Marker>>(set.populatedChunks.size());
+		
+		final var rows = new ArrayList<List<ChunkInfo>>(32);
+		for(int i = 0; i < 32; i++) rows.add(new ArrayList<>());
+		for(var info: set.populatedChunks) rows.get(info.pos.z & 31).add(info);
+		
+		benchmark.start();
+		return renderRows(set.dim, img, layerImgs, set.pos, rows, 0, Map.of(), parseChunks(set.dim, rows.get(0), markers), markers, new ConcurrentHashMap<>())
+			.thenApply(v -> {
+				if(!dryRun) MarkerIndex.update(set.dim.prefix, set.pos, markers);
+				benchmark.end();
+				BadMap.LOGGER.debug("perf: parsed and rendered region ({} chunks) by rows in {}ms", set.populatedChunks.size(), benchmark.msecs());
+				return img;
+			})
+		;
+	}
+	
+	// Renders row `row` once it's parsed, parsing the next row meanwhile.
+	// Of earlier rows only `previous` is kept, as chunks are shaded against their northern neighbours.
+	private CompletableFuture<Void> renderRows(
+		Dimension dim, BufferedImage img, List<BufferedImage> layerImgs, RegionPos regionPos, List<List<ChunkInfo>> rows, int row,
+		Map<ChunkPos, Chunk> previous, CompletableFuture<Map<ChunkPos, Chunk>> parsing,
+		Map<ChunkPos, List<MarkerIndex.Marker>> markers, Map<ChunkPos, int[]> floors
+	)
+	{
+		return parsing.thenComposeAsync(current -> {
+			final var next = row + 1 < rows.size() ? parseChunks(dim, rows.get(row + 1), markers) : null;
+			final var rendered = renderParsed(dim, img, layerImgs, regionPos, current, previous, floors);
+			if(next == null) return rendered;
+			return rendered.thenCompose(v -> renderRows(dim, img, layerImgs, regionPos, rows, row + 1, current, next, markers, floors));
+		}, BadMap.THREADPOOL);
+	}
+	
+	// Renders already parsed chunks of a region into `img`, split across workers.
+	// Chunks to the north are looked up in `northChunks`, which may just be `allChunks`.
+	// Each chunk is drawn into the surface raster `img` and every layer's raster in one go, so it's only unpacked once.
+	// `floors` is shared by all of a region's chunks, see renderChunk.
+	private CompletableFuture<Void> renderParsed(
+		Dimension dim, BufferedImage img, List<BufferedImage> layerImgs, RegionPos regionPos,
+		Map<ChunkPos, Chunk> allChunks, Map<ChunkPos, Chunk> northChunks, Map<ChunkPos, int[]> floors
+	)
+	{
+		final var chunks = allChunks
+			.entrySet()
+			.stream()
+			.map(pair -> {
+				final var pos = pair.getKey();
+				final var north = new ChunkPos(pos.x, pos.z - 1);
+				return new ChunkPair(pair.getValue(), northChunks.getOrDefault(north, null));
+			})
+			.collect(Collectors.toList())
+		;
+		
+		final var tasks = Utils.workerBatches(chunks)
+			.stream()
+			.map(batch -> CompletableFuture.runAsync(
+				() -> batch.forEach(pair -> {
+					final var pos = pair.main.getPos();
+					try
+					{
+						final var unpacked = UnpackedChunk.of(pair.main);
+						renderChunk(dim, img, regionPos, pair.main, unpacked, pair.toNorth, floors);
+						for(int i = 0; i < layerImgs.size(); i++)
+							renderLayerChunk(dim, layerImgs.get(i), layers.get(i).ceiling, regionPos, pair.main, unpacked, pair.toNorth);
+						if(!dryRun) BadMap.FAILURES.clear(dim.id, pos);
+					}
+					catch(Exception err)
+					{
+						chunkFailed(dim, pos, "render", err);
+					}
+				}),
+				BadMap.THREADPOOL
+			))
+			.toArray(CompletableFuture[]::new)
+		;
+		return CompletableFuture.allOf(tasks);
+	}
+	
 	private CompletableFuture<Map<ChunkPos, Chunk>> parseChunks(RegionSet set)
 	{
+		final var markers = new ConcurrentHashMap<ChunkPos, List<MarkerIndex.Marker>>(set.populatedChunks.size());
+		return parseChunks(set.dim, set.populatedChunks, markers).thenApply(chunks -> {
+			if(!dryRun) MarkerIndex.update(set.dim.prefix, set.pos, markers);
+			return chunks;
+		});
+	}
+	
+	// Markers found in the chunks are added to `markers`, for the caller to index once the whole region is parsed.
+	private CompletableFuture<Map<ChunkPos, Chunk>> parseChunks(Dimension dim, List<ChunkInfo> infos, Map<ChunkPos, List<MarkerIndex.Marker>> markers)
+	{
+		final var world = dim.world;
 		final var structureManager = world.getStructureManager();
 		final var poiStorage = POIStorageFaker.getInstance();
 		
 		// FIXME: can we efficiently reimplement fetching preloaded chunks?
 		
-		final var batches = Utils.workerBatches(set.populatedChunks)
+		// batches fill one map directly, rather than each filling their own to be merged
+		final var parsed = new ConcurrentHashMap<ChunkPos, Chunk>(infos.size());
+		final var batches = Utils.workerBatches(infos)
 			.stream()
-			.map(batch -> CompletableFuture.supplyAsync(() -> {
-				final var submap = new HashMap<ChunkPos, Chunk>(batch.size(), 1f);
+			.map(batch -> CompletableFuture.runAsync(() -> {
 				for(var info: batch)
 				{
-					final var chunk = (ReadOnlyChunk)ChunkSerializer.deserialize(world, structureManager, poiStorage, info.pos, info.nbt);
-					submap.put(info.pos, chunk.getWrappedChunk());
+					try
+					{
+						// while the NBT is at hand, as it's dropped once the region is rendered
+						markers.put(info.pos, MarkerIndex.extract(info.pos, info.nbt));
+						final var chunk = (ReadOnlyChunk)ChunkSerializer.deserialize(world, structureManager, poiStorage, info.pos, info.nbt);
+						parsed.put(info.pos, chunk.getWrappedChunk());
+					}
+					catch(Exception err)
+					{
+						// leaves the chunk out, so its pixels keep whatever they were before
+						chunkFailed(dim, info.pos, "parse", err);
+					}
 				}
-				return submap;
 			}, BadMap.THREADPOOL))
 			.collect(Collectors.toList())
 		;
@@ -275,35 +956,170 @@ public class RenderJob
 			BadMap.LOGGER.trace("batchesFuture exception", err);
 			mapFuture.completeExceptionally(err); return null;
 		}, BadMap.THREADPOOL);
-		batchesFuture.thenRunAsync(
-			() -> {
-				final var combined = new HashMap<ChunkPos, Chunk>(set.populatedChunks.size(), 1f);
-				for(var job: batches) combined.putAll(job.getNow(null));
-				mapFuture.complete(combined);
-			},
-			BadMap.THREADPOOL
-		);
+		batchesFuture.thenRunAsync(() -> mapFuture.complete(parsed), BadMap.THREADPOOL);
 		return mapFuture;
 	}
 	
-	private void renderChunk(BufferedImage regionImage, RegionPos regionPos, Chunk chunk, @Nullable Chunk toNorth)
+	private CompletableFuture<BufferedImage> renderPreviewRegion(RegionSet set)
 	{
-		final var chunkPos = chunk.getPos();
+		final var world = set.dim.world;
+		final var benchmark = new Utils.Benchmark();
+		final var img = BadMap.RASTER_POOL.acquire();
+		final var chunks = new ConcurrentHashMap<ChunkPos, PreviewChunk>(set.populatedChunks.size());
+		final var markers = new ConcurrentHashMap<ChunkPos, List<MarkerIndex.Marker>>(set.populatedChunks.size());
+		final var batches = Utils.workerBatches(set.populatedChunks);
+		
+		benchmark.start();
+		final var decoded = CompletableFuture.allOf(batches
+			.stream()
+			.map(batch -> CompletableFuture.runAsync(() -> {
+				for(var info: batch)
+				{
+					try
+					{
+						markers.put(info.pos, MarkerIndex.extract(info.pos, info.nbt));
+						final var chunk = PreviewChunk.of(info.nbt, world.getBottomY(), world.getHeight());
+						if(chunk != null) chunks.put(info.pos, chunk);
+					}
+					catch(Exception err)
+					{
+						chunkFailed(set.dim, info.pos, "parse", err);
+					}
+				}
+			}, BadMap.THREADPOOL))
+			.toArray(CompletableFuture[]::new)
+		);
+		
+		return decoded
+			.thenApply(v -> {
+				MarkerIndex.update(set.dim.prefix, set.pos, markers);
+				return v;
+			})
+			.thenCompose(v -> CompletableFuture.allOf(batches
+				.stream()
+				.map(batch -> CompletableFuture.runAsync(() -> {
+					for(var info: batch)
+					{
+						final var chunk = chunks.get(info.pos);
+						if(chunk == null) continue;
+						
+						try
+						{
+							renderPreviewChunk(set.dim, img, set.pos, info.pos, chunk, chunks.get(new ChunkPos(info.pos.x, info.pos.z - 1)));
+							if(!dryRun) BadMap.FAILURES.clear(set.dim.id, info.pos);
+						}
+						catch(Exception err)
+						{
+							chunkFailed(set.dim, info.pos, "render", err);
+						}
+					}
+				}, BadMap.THREADPOOL))
+				.toArray(CompletableFuture[]::new)
+			))
+			.thenApply(v -> {
+				benchmark.end();
+				BadMap.LOGGER.debug("perf: preview rendered region ({} chunks) in {}ms", chunks.size(), benchmark.msecs());
+				return img;
+			})
+		;
+	}
+	
+	private void renderPreviewChunk(Dimension dim, BufferedImage regionImage, RegionPos regionPos, ChunkPos chunkPos, PreviewChunk chunk, @Nullable PreviewChunk toNorth)
+	{
+		final var world = dim.world;
 		final var pixelOffset = getPixelOffset(regionPos, chunkPos);
+		final var northEdge = toNorth == null ? dim.edges.get(new ChunkPos(chunkPos.x, chunkPos.z - 1)) : null;
 		
-		final var heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
-		final var toNorthHeightmap = toNorth == null ? null : toNorth.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+		final var southEdge = new int[16];
+		for(int x = 0; x < 16; x++)
+			southEdge[x] = chunk.getSurface(x, 15) - 1;
+		dim.edges.put(chunkPos, southEdge);
 		
 		final var blockPos = new BlockPos.Mutable();
+		for(int x = 0; x < 16; x++)
+		{
+			int prevHeight;
+			if(toNorth != null)
+				prevHeight = toNorth.getSurface(x, 15) - 1;
+			else if(northEdge != null)
+				prevHeight = northEdge[x];
+			else
+				prevHeight = world.getBottomY();
+			
+			for(int z = 0; z < 16; z++)
+			{
+				final var top = chunk.getSurface(x, z) - 1;
+				var color = MapColor.CLEAR;
+				var isWater = false;
+				var waterDepth = 0;
+				
+				if(top >= chunk.bottomY)
+				{
+					blockPos.set(chunkPos.getStartX() + x, top, chunkPos.getStartZ() + z);
+					final var state = chunk.getBlockState(x, top, z);
+					color = state.getMapColor(world, blockPos);
+					isWater = !state.getFluidState().isEmpty();
+					// the ocean floor heightmap ignores fluids, so gives depth without scanning the column
+					if(isWater) waterDepth = Math.max(0, top - chunk.getFloor(x, z));
+				}
+				
+				regionImage.setRGB(pixelOffset.getX() + x, pixelOffset.getY() + z, getColumnColor(color, null, isWater, waterDepth, top, prevHeight, world.getBottomY()));
+				prevHeight = top;
+			}
+		}
+	}
+	
+	// In dimensions with a ceiling, `floors` holds the floor heights along the southern edge of each chunk of the region,
+	// so they're found once per chunk, whether by that chunk or by its southern neighbour.
+	private void renderChunk(
+		Dimension dim, BufferedImage regionImage, RegionPos regionPos, Chunk chunk, UnpackedChunk unpacked, @Nullable Chunk toNorth,
+		Map<ChunkPos, int[]> floors
+	)
+	{
+		final var world = dim.world;
+		final var chunkPos = chunk.getPos();
+		final var pixelOffset = getPixelOffset(regionPos, chunkPos);
+		final var blockPos = new BlockPos.Mutable();
+		
+		// under a ceiling, the heightmap is just the ceiling, so columns are shaded by the floor beneath it instead
+		final var toNorthHeightmap = toNorth == null || dim.ceiling != Dimension.NO_CEILING ? null : toNorth.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+		final var toNorthFloors = toNorth == null || dim.ceiling == Dimension.NO_CEILING
+			? null
+			: floors.computeIfAbsent(toNorth.getPos(), pos -> getFloors(dim, UnpackedChunk.ofNeighbour(toNorth), pos, 15, blockPos))
+		;
+		// when the chunk to the north wasn't parsed, fall back to the heights it had when it was last rendered
+		final var northEdge = toNorth == null ? dim.edges.get(new ChunkPos(chunkPos.x, chunkPos.z - 1)) : null;
+		
+		final var southEdge = dim.ceiling != Dimension.NO_CEILING
+			? floors.computeIfAbsent(chunkPos, pos -> getFloors(dim, unpacked, pos, 15, blockPos))
+			: new int[16]
+		;
+		if(dim.ceiling == Dimension.NO_CEILING)
+			for(int x = 0; x < 16; x++)
+				southEdge[x] = unpacked.getHeight(x, 15) - 1;
+		dim.edges.put(chunkPos, southEdge);
+		
 		for(int x = 0; x < 16; x++)
 		{
 			// tracks prior topmost block, controlling terrain shading
-			// for chunks not at the top of the region, we use the real value
-			int prevHeight = toNorth == null ? world.getBottomY() : toNorthHeightmap.get(x, 15) - 1;
+			int prevHeight;
+			if(toNorthFloors != null)
+				prevHeight = toNorthFloors[x];
+			else if(toNorth != null)
+				prevHeight = toNorthHeightmap.get(x, 15) - 1;
+			else if(northEdge != null)
+				prevHeight = northEdge[x];
+			else
+				prevHeight = world.getBottomY();
 			
 			for(int z = 0; z < 16; z++)
 			{
-				var y = heightmap.get(x, z);
+				var y = unpacked.getHeight(x, z);
+				if(dim.ceiling != Dimension.NO_CEILING)
+				{
+					blockPos.set(chunkPos.getStartX() + x, 0, chunkPos.getStartZ() + z);
+					y = findFloor(dim, unpacked, x, z, dim.ceiling, blockPos);
+				}
 				MapColor color = MapColor.CLEAR;
 				
 				boolean isWater = false;
@@ -312,7 +1128,7 @@ public class RenderJob
 				while(y >= chunk.getBottomY())
 				{
 					blockPos.setY(y);
-					final var state = chunk.getBlockState(blockPos);
+					final var state = unpacked.getBlockState(x, y, z);
 					color = state.getMapColor(world, blockPos);
 					
 					if(color != MapColor.CLEAR)
@@ -332,7 +1148,7 @@ public class RenderJob
 				{
 					y--;
 					blockPos.setY(y);
-					final var state = chunk.getBlockState(blockPos);
+					final var state = unpacked.getBlockState(x, y, z);
 					
 					if(state.getFluidState().isEmpty())
 					{
@@ -343,37 +1159,146 @@ public class RenderJob
 					waterDepth += 1;
 				}
 				
-				int shade;
-				if(isWater)
-					shade = ORDERED_SHADES[Utils.round(MathHelper.clamp(waterDepth / 5.0, 0.0, 3.0))];
-				else
+				final var finalColor = getColumnColor(color, blendColor, isWater, waterDepth, waterTop, prevHeight, world.getBottomY());
+				regionImage.setRGB(pixelOffset.getX() + x, pixelOffset.getY() + z, finalColor);
+				prevHeight = waterTop;
+			}
+		}
+	}
+	
+	// Like renderChunk, but for a layer: each column shows the first floor below `ceiling`, as if everything above were cut away.
+	// Layers have no edge cache, so chunks along a region's north edge are shaded flat against their missing neighbour.
+	private void renderLayerChunk(Dimension dim, BufferedImage layerImage, int ceiling, RegionPos regionPos, Chunk chunk, UnpackedChunk unpacked, @Nullable Chunk toNorth)
+	{
+		final var world = dim.world;
+		final var chunkPos = chunk.getPos();
+		final var pixelOffset = getPixelOffset(regionPos, chunkPos);
+		final var bottomY = world.getBottomY();
+		final var blockPos = new BlockPos.Mutable();
+		
+		int[] northEdge = null;
+		if(toNorth != null)
+		{
+			final var north = UnpackedChunk.ofNeighbour(toNorth);
+			final var northPos = toNorth.getPos();
+			northEdge = new int[16];
+			for(int x = 0; x < 16; x++)
+			{
+				blockPos.set(northPos.getStartX() + x, 0, northPos.getStartZ() + 15);
+				northEdge[x] = findFloor(dim, north, x, 15, ceiling, blockPos);
+			}
+		}
+		
+		for(int x = 0; x < 16; x++)
+		{
+			var prevHeight = northEdge != null ? northEdge[x] : bottomY;
+			
+			for(int z = 0; z < 16; z++)
+			{
+				blockPos.set(chunkPos.getStartX() + x, 0, chunkPos.getStartZ() + z);
+				var y = findFloor(dim, unpacked, x, z, ceiling, blockPos);
+				
+				MapColor color = MapColor.CLEAR;
+				boolean isWater = false;
+				if(y >= bottomY)
 				{
-					final var delta = prevHeight <= world.getBottomY() ? 0 : waterTop - prevHeight;
-					
-					// select shade from a (sort-of uniform) height-dependent distribution over [0, 3] with median 2
-					// i.e. negative delta gives darker colors, positive gives lighter
-					final var val = Utils.round(MathHelper.clamp(1.5 + delta, 0.0, 3.0));
-					shade = ORDERED_SHADES[3 - val];
+					blockPos.setY(y);
+					final var state = unpacked.getBlockState(x, y, z);
+					color = state.getMapColor(world, blockPos);
+					isWater = !state.getFluidState().isEmpty();
 				}
 				
-				int finalColor;
-				if(color == MapColor.CLEAR) // set (tagged) transparent if this block column is entirely air
-					finalColor = TRANSPARENCY_SENTINEL;
-				else if(blendColor == null) // fast path when not blending
-					finalColor = Utils.getMapColor(color, shade).toABGR();
-				else
-					finalColor = Utils.blendColors(
-						Utils.getMapColor(color, shade),
-						Utils.getMapColor(blendColor, ORDERED_SHADES[0]), // blend water shade with brightest shade of submerged block
-						0.25 // TODO: vary blend strength with water depth, maybe expand maxSearch to 30-60?
-					).toABGR();
+				final var floor = y;
 				
-				regionImage.setRGB(pixelOffset.getX() + x, pixelOffset.getY() + z, finalColor);
-				prevHeight = waterTop;
+				int waterDepth = 0;
+				MapColor blendColor = null;
+				for(int maxSearch = 0; isWater && y > bottomY && maxSearch < 15; maxSearch++)
+				{
+					y--;
+					blockPos.setY(y);
+					final var state = unpacked.getBlockState(x, y, z);
+					
+					if(state.getFluidState().isEmpty())
+					{
+						blendColor = state.getMapColor(world, blockPos);
+						break;
+					}
+					
+					waterDepth += 1;
+				}
+				
+				final var finalColor = getColumnColor(color, blendColor, isWater, waterDepth, floor, prevHeight, bottomY);
+				layerImage.setRGB(pixelOffset.getX() + x, pixelOffset.getY() + z, finalColor);
+				prevHeight = floor;
 			}
 		}
 	}
 	
+	// Height of the first visible block below the open space under `ceiling`, or below the world's bottom if there's none.
+	// `blockPos` must be set to the column, its y is clobbered.
+	private static int findFloor(Dimension dim, UnpackedChunk chunk, int x, int z, int ceiling, BlockPos.Mutable blockPos)
+	{
+		final var world = dim.world;
+		final var bottomY = world.getBottomY();
+		// columns topping out below the ceiling just show the surface
+		var y = Math.min(ceiling, chunk.getHeight(x, z));
+		
+		// skip the solid ground the ceiling cuts through
+		while(y >= bottomY && !chunk.getBlockState(x, y, z).isAir())
+			y--;
+		
+		// then the open space beneath it
+		while(y >= bottomY)
+		{
+			blockPos.setY(y);
+			if(chunk.getBlockState(x, y, z).getMapColor(world, blockPos) != MapColor.CLEAR) break;
+			y--;
+		}
+		
+		return y;
+	}
+	
+	// findFloor of each column along row `z` of a chunk, below the dimension's ceiling.
+	private static int[] getFloors(Dimension dim, UnpackedChunk chunk, ChunkPos chunkPos, int z, BlockPos.Mutable blockPos)
+	{
+		final var floors = new int[16];
+		for(int x = 0; x < 16; x++)
+		{
+			blockPos.set(chunkPos.getStartX() + x, 0, chunkPos.getStartZ() + z);
+			floors[x] = findFloor(dim, chunk, x, z, dim.ceiling, blockPos);
+		}
+		return floors;
+	}
+	
+	// Final color of a block column, given its topmost visible block (or water) at `height`,
+	// and `prevHeight` of the column to its north.
+	static int getColumnColor(MapColor color, @Nullable MapColor blendColor, boolean isWater, int waterDepth, int height, int prevHeight, int bottomY)
+	{
+		int shade;
+		if(isWater)
+			shade = ORDERED_SHADES[Utils.round(MathHelper.clamp(waterDepth / 5.0, 0.0, 3.0))];
+		else
+		{
+			final var delta = prevHeight <= bottomY ? 0 : height - prevHeight;
+			
+			// select shade from a (sort-of uniform) height-dependent distribution over [0, 3] with median 2
+			// i.e. negative delta gives darker colors, positive gives lighter
+			final var val = Utils.round(MathHelper.clamp(1.5 + delta, 0.0, 3.0));
+			shade = ORDERED_SHADES[3 - val];
+		}
+		
+		if(color == MapColor.CLEAR) // set (tagged) transparent if this block column is entirely air
+			return TRANSPARENCY_SENTINEL;
+		else if(blendColor == null) // fast path when not blending
+			return Utils.getMapColor(color, shade).toABGR();
+		else
+			return Utils.blendColors(
+				Utils.getMapColor(color, shade),
+				Utils.getMapColor(blendColor, ORDERED_SHADES[0]), // blend water shade with brightest shade of submerged block
+				0.25 // TODO: vary blend strength with water depth, maybe expand maxSearch to 30-60?
+			).toABGR();
+	}
+	
 	private boolean isChunkOutdated(BufferedImage prerendered, long imageMtime, RegionPos regionPos, ChunkInfo info)
 	{
 		final var pixelOffset = getPixelOffset(regionPos, info.pos);
@@ -396,8 +1321,26 @@ public class RenderJob
 		return new Vec3i(16 * posInRegion.x, 16 * posInRegion.z, 0); // no vec2i -_-
 	}
 	
+	// decoded tile kept between renders, patched in place by incremental renders
+	static record CachedRaster(BufferedImage img, long renderedAt)
+	{
+		long sizeBytes()
+		{
+			return 4L * img.getWidth() * img.getHeight();
+		}
+	}
+	
+	static record RenderedRegion(CachedRaster raster, List<CachedRaster> layers, @Nullable List<ChunkPos> changed) {}
+	static record RegionRasters(@Nullable CachedRaster prerendered, List<BufferedImage> layers) {}
+	
 	static record ChunkPair(Chunk main, @Nullable Chunk toNorth) {}
 	
 	static record ChunkInfo(ChunkPos pos, long mtime, NbtCompound nbt) {}
-	static record RegionSet(RegionPos pos, List<ChunkInfo> populatedChunks) {}
+	static record RegionSet(Dimension dim, RegionPos pos, List<ChunkInfo> populatedChunks)
+	{
+		String journalKey()
+		{
+			return RenderJournal.key(dim.id, pos);
+		}
+	}
 }
@@ -0,0 +1,279 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.gson.Gson;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.util.math.ChunkPos;
+import net.yoplitein.badmap.RenderJob.RegionSet;
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// Progress of the running render, so one interrupted by a restart can carry on where it stopped.
+// `journal/plan.json` lists every region to render along with its populated chunks, so discovery needn't be redone;
+// `journal/done.txt` gets a line appended as each region's tiles are written, `x,z` plus `,dimension` outside the overworld.
+// `journal/scheduled` marks renders started by RenderScheduler, which are only resumed within its windows.
+// Both are deleted once the render completes.
+// If sharded, the plan's regions are split into runs of `shardRegions` that each worker claims through ShardLeases.
+public class RenderJournal
+{
+	static final String DIR = "journal";
+	static final String SCHEDULED_FILE = "scheduled";
+	
+	private static final Gson gson = new Gson();
+	
+	final RenderJob.Mode mode;
+	final long renderStart;
+	final @Nullable ShardLeases shards; // null if not sharded
+	private final Plan plan;
+	private final Set<String> done; // see key()
+	
+	static record Planned(String dimension, RegionPos pos, List<ChunkPos> chunks) {}
+	
+	private static class Plan
+	{
+		RenderJob.Mode mode;
+		long renderStart;
+		int shardRegions; // 0 if not sharded
+		List<PlannedRegion> regions;
+	}
+	
+	private static class PlannedRegion
+	{
+		String dimension; // missing from journals written before other dimensions could be rendered
+		int x, z;
+		String chunks; // base64 bitmask of populated chunks, indexed by z * 32 + x within the region
+	}
+	
+	private RenderJournal(Plan plan, Set<String> done)
+	{
+		this.mode = plan.mode;
+		this.renderStart = plan.renderStart;
+		this.plan = plan;
+		this.done = done;
+		this.shards = plan.shardRegions > 0
+			? new ShardLeases(new File(getDir(), ShardLeases.DIR), (plan.regions.size() + plan.shardRegions - 1) / plan.shardRegions)
+			: null
+		;
+	}
+	
+	// Records the plan for a new render, replacing any previous journal.
+	// Refuses to while other workers may still be rendering shards of the previous one.
+	static RenderJournal begin(RenderJob.Mode mode, long renderStart, List<RegionSet> regions)
+	{
+		if(hasLiveLeases()) throw new IllegalStateException("other workers still hold leases on the previous render's shards");
+		
+		final var plan = new Plan();
+		plan.mode = mode;
+		plan.renderStart = renderStart;
+		plan.shardRegions = Math.max(0, BadMap.CONFIG.shardRegions);
+		plan.regions = new ArrayList<>(regions.size());
+		for(var set: regions)
+		{
+			final var mask = new BitSet(1024);
+			for(var info: set.populatedChunks())
+			{
+				final var local = set.pos().chunkPosInRegion(info.pos());
+				mask.set(local.z * 32 + local.x);
+			}
+			
+			final var planned = new PlannedRegion();
+			planned.dimension = set.dim().id;
+			planned.x = set.pos().x();
+			planned.z = set.pos().z();
+			planned.chunks = Base64.getEncoder().encodeToString(mask.toByteArray());
+			plan.regions.add(planned);
+		}
+		
+		final var dir = getDir();
+		dir.mkdirs();
+		final var doneFile = new File(dir, "done.txt");
+		if(doneFile.exists() && !doneFile.delete())
+			BadMap.LOGGER.warn("failed to clear previous render journal `{}`", doneFile.getPath());
+		FileUtils.deleteQuietly(new File(dir, ShardLeases.DIR));
+		FileUtils.deleteQuietly(new File(dir, SCHEDULED_FILE));
+		Utils.writeAtomic(new File(dir, "plan.json"), gson.toJson(plan).getBytes(StandardCharsets.UTF_8));
+		
+		return new RenderJournal(plan, new HashSet<>());
+	}
+	
+	// Returns the journal of an interrupted render, if any.
+	static @Nullable RenderJournal load()
+	{
+		final var dir = getDir();
+		final var planFile = new File(dir, "plan.json");
+		if(!planFile.exists()) return null;
+		
+		try
+		{
+			final var plan = gson.fromJson(FileUtils.readFileToString(planFile, StandardCharsets.UTF_8), Plan.class);
+			final var done = readDone();
+			return new RenderJournal(plan, done);
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to load render journal, discarding it", err);
+			FileUtils.deleteQuietly(dir);
+			return null;
+		}
+	}
+	
+	// Every dimension with a planned region.
+	Set<String> dimensions()
+	{
+		final var dimensions = new HashSet<String>();
+		for(var planned: plan.regions)
+			dimensions.add(planned.dimension != null ? planned.dimension : RenderJob.Dimension.OVERWORLD);
+		return dimensions;
+	}
+	
+	int plannedCount()
+	{
+		return plan.regions.size();
+	}
+	
+	// Chunks of each region that hasn't been completed yet.
+	List<Planned> remaining()
+	{
+		return remaining(plan.regions);
+	}
+	
+	// Same, but only those in `shard`, and including regions completed by other workers since the journal was loaded.
+	synchronized List<Planned> remaining(int shard)
+	{
+		try { done.addAll(readDone()); }
+		catch(Exception err) { BadMap.LOGGER.warn("failed to reread render journal, completed regions may be rendered again", err); }
+		
+		final var start = shard * plan.shardRegions;
+		return remaining(plan.regions.subList(start, Math.min(start + plan.shardRegions, plan.regions.size())));
+	}
+	
+	private List<Planned> remaining(List<PlannedRegion> regions)
+	{
+		final var result = new ArrayList<Planned>();
+		for(var planned: regions)
+		{
+			final var dimension = planned.dimension != null ? planned.dimension : RenderJob.Dimension.OVERWORLD;
+			final var pos = new RegionPos(planned.x, planned.z);
+			if(done.contains(key(dimension, pos))) continue;
+			
+			final var mask = BitSet.valueOf(Base64.getDecoder().decode(planned.chunks));
+			final var chunks = new ArrayList<ChunkPos>(mask.cardinality());
+			for(int i = mask.nextSetBit(0); i >= 0; i = mask.nextSetBit(i + 1))
+				chunks.add(new ChunkPos(pos.x() * 32 + (i & 31), pos.z() * 32 + (i >> 5)));
+			result.add(new Planned(dimension, pos, chunks));
+		}
+		return result;
+	}
+	
+	synchronized void complete(String dimension, RegionPos pos)
+	{
+		final var key = key(dimension, pos);
+		if(!done.add(key)) return;
+		
+		try
+		{
+			Files.writeString(
+				new File(getDir(), "done.txt").toPath(),
+				key + "\n",
+				StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND
+			);
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.warn("failed to journal completion of region {} in {}", pos, dimension, err);
+		}
+	}
+	
+	// Claims a shard for this instance to render, returning -1 if there are none left unclaimed.
+	int claimShard()
+	{
+		// another worker may have finished the render (and deleted the journal) in the meantime
+		if(!new File(getDir(), "plan.json").exists()) return -1;
+		return shards.claim();
+	}
+	
+	// Whether every region has been rendered, by any worker.
+	boolean isComplete()
+	{
+		return shards == null || !new File(getDir(), "plan.json").exists() || shards.allDone();
+	}
+	
+	// Publishes the tile manifest, merged with any newer versions published by other workers.
+	// Done even when not sharded, as workers of an earlier sharded render may have published since.
+	void publishManifest()
+	{
+		ShardLeases.locked(new File(getDir(), ShardLeases.DIR), () -> {
+			BadMap.MANIFEST.merge();
+			BadMap.MANIFEST.publish();
+			return null;
+		});
+	}
+	
+	static boolean hasLiveLeases()
+	{
+		final var dir = new File(getDir(), ShardLeases.DIR);
+		return dir.exists() && ShardLeases.anyLive(dir);
+	}
+	
+	// Whether the journaled render was started by RenderScheduler.
+	static boolean isScheduled()
+	{
+		return new File(getDir(), SCHEDULED_FILE).exists();
+	}
+	
+	void markScheduled()
+	{
+		try { new File(getDir(), SCHEDULED_FILE).createNewFile(); }
+		catch(IOException err) { BadMap.LOGGER.warn("failed to mark render journal as scheduled, it will be resumed on startup", err); }
+	}
+	
+	synchronized void finish()
+	{
+		FileUtils.deleteQuietly(getDir());
+	}
+	
+	static String key(String dimension, RegionPos pos)
+	{
+		final var key = "%d,%d".formatted(pos.x(), pos.z());
+		return dimension.equals(RenderJob.Dimension.OVERWORLD) ? key : key + "," + dimension;
+	}
+	
+	private static Set<String> readDone() throws IOException
+	{
+		final var done = new HashSet<String>();
+		final var doneFile = new File(getDir(), "done.txt");
+		if(doneFile.exists())
+			for(var line: FileUtils.readLines(doneFile, StandardCharsets.UTF_8))
+			{
+				// a torn last line just means that region is rendered again
+				final var parts = line.split(",");
+				if(parts.length < 2 || parts.length > 3) continue;
+				try
+				{
+					final var pos = new RegionPos(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+					done.add(key(parts.length == 3 ? parts[2] : RenderJob.Dimension.OVERWORLD, pos));
+				}
+				catch(NumberFormatException err) {}
+			}
+		return done;
+	}
+	
+	private static File getDir()
+	{
+		return BadMap.CONFIG.bmapDir.resolve(DIR).toFile();
+	}
+}
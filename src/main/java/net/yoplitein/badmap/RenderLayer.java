@@ -0,0 +1,24 @@
+package net.yoplitein.badmap;
+
+import net.yoplitein.badmap.Utils.RegionPos;
+
+// An extra map rendered alongside the surface from the same parsed chunks, showing the first floor below `ceiling`
+// as if everything above it were cut away (e.g. caves.) Its tiles go in their own subdirectory of the tile directory.
+public class RenderLayer
+{
+	public String name;
+	public int ceiling;
+	
+	public String tileName(RegionPos pos)
+	{
+		return name + "/" + Utils.tileFilename(pos);
+	}
+	
+	void validate()
+	{
+		if(name == null || !name.matches("[a-z0-9_-]+"))
+			throw new IllegalArgumentException("layer name `%s` must be made of lowercase letters, digits, `-` and `_`".formatted(name));
+		if(name.equals(TileManifest.DELTA_DIR))
+			throw new IllegalArgumentException("layer name `%s` is reserved".formatted(name));
+	}
+}
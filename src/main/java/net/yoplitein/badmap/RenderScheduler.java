@@ -0,0 +1,166 @@
+package net.yoplitein.badmap;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.server.MinecraftServer;
+
+// Starts renders automatically during configured windows while few enough players are online,
+// and stops them again (leaving their journal to resume from) once the window closes or players arrive.
+// Each window opening gets at most one completed render. A failed render is retried with exponential backoff.
+public class RenderScheduler
+{
+	static final int CHECK_INTERVAL = 20; // ticks
+	static final long MIN_RETRY_DELAY = 5 * 60_000;
+	static final long MAX_RETRY_DELAY = 60 * 60_000;
+	
+	private int ticks = 0;
+	private long retryDelay = 0;
+	private long retryAt = 0;
+	private @Nullable RenderJob scheduledJob;
+	private @Nullable String scheduledKey; // identifies the window opening the job was started for
+	private @Nullable String completedKey;
+	
+	// A window like `mon-fri 02:00-06:00`, `sat,sun 22:00-04:00` or `* 03:00-05:00`.
+	// Windows ending before they start run past midnight, into the next day.
+	public static class Window
+	{
+		public String when;
+		public RenderJob.Mode mode;
+		
+		private transient Set<DayOfWeek> days;
+		private transient LocalTime start;
+		private transient LocalTime end;
+		
+		void parse()
+		{
+			final var parts = when == null ? new String[0] : when.trim().split("\\s+");
+			if(parts.length != 2) throw new IllegalArgumentException("render window `%s` should look like `mon-fri 02:00-06:00`".formatted(when));
+			if(mode == null) throw new IllegalArgumentException("render window `%s` is missing a mode".formatted(when));
+			
+			final var newDays = EnumSet.noneOf(DayOfWeek.class);
+			if(parts[0].equals("*"))
+				newDays.addAll(EnumSet.allOf(DayOfWeek.class));
+			else
+				for(var range: parts[0].split(","))
+				{
+					final var ends = range.split("-");
+					if(ends.length > 2) throw new IllegalArgumentException("bad day range `%s` in render window `%s`".formatted(range, when));
+					
+					final var first = parseDay(ends[0]);
+					final var last = ends.length == 2 ? parseDay(ends[1]) : first;
+					for(var day = first; ; day = day.plus(1))
+					{
+						newDays.add(day);
+						if(day == last) break;
+					}
+				}
+			
+			final var times = parts[1].split("-");
+			if(times.length != 2) throw new IllegalArgumentException("bad time range `%s` in render window `%s`".formatted(parts[1], when));
+			
+			days = newDays;
+			start = LocalTime.parse(times[0]);
+			end = LocalTime.parse(times[1]);
+		}
+		
+		private static DayOfWeek parseDay(String name)
+		{
+			final var prefix = name.toUpperCase(Locale.ROOT);
+			for(var day: DayOfWeek.values())
+				if(prefix.length() >= 3 && day.name().startsWith(prefix)) return day;
+			throw new IllegalArgumentException("unknown day `%s` in render window".formatted(name));
+		}
+		
+		// Date the window last opened on, if it's open at `now`.
+		@Nullable LocalDate openedOn(LocalDateTime now)
+		{
+			if(days == null) parse();
+			
+			final var time = now.toLocalTime();
+			final var today = now.toLocalDate();
+			if(start.isBefore(end))
+				return days.contains(today.getDayOfWeek()) && !time.isBefore(start) && time.isBefore(end) ? today : null;
+			
+			if(!time.isBefore(start) && days.contains(today.getDayOfWeek())) return today;
+			final var yesterday = today.minusDays(1);
+			if(time.isBefore(end) && days.contains(yesterday.getDayOfWeek())) return yesterday;
+			return null;
+		}
+	}
+	
+	public void onTick(MinecraftServer server)
+	{
+		if(++ticks < CHECK_INTERVAL) return;
+		ticks = 0;
+		
+		final var config = BadMap.CONFIG;
+		if(config == null || config.renderWindows == null || config.renderWindows.isEmpty()) return;
+		
+		if(scheduledJob != null && scheduledJob.isFinished())
+		{
+			completedKey = scheduledKey;
+			scheduledJob = null;
+			retryDelay = 0;
+		}
+		else if(scheduledJob != null && scheduledJob.hasFailed())
+		{
+			retryDelay = retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+			retryAt = System.currentTimeMillis() + retryDelay;
+			BadMap.LOGGER.warn("Scheduled render failed, retrying in {} minutes", retryDelay / 60_000);
+			scheduledJob = null;
+		}
+		
+		final var now = LocalDateTime.now();
+		Window open = null;
+		LocalDate openedOn = null;
+		for(var window: config.renderWindows)
+		{
+			openedOn = window.openedOn(now);
+			if(openedOn != null)
+			{
+				open = window;
+				break;
+			}
+		}
+		
+		final var players = server.getCurrentPlayerCount();
+		final var quiet = players <= config.renderWindowMaxPlayers;
+		
+		final var active = RenderJob.getActive();
+		if(active != null)
+		{
+			if(active != scheduledJob || open != null && quiet) return;
+			
+			if(open == null)
+				BadMap.LOGGER.info("Render window closed, pausing render");
+			else
+				BadMap.LOGGER.info("{} players online, pausing scheduled render", players);
+			active.stop();
+			scheduledJob = null;
+			return;
+		}
+		
+		if(open == null || !quiet) return;
+		
+		final var key = open.when + "@" + openedOn;
+		if(key.equals(completedKey) || System.currentTimeMillis() < retryAt) return;
+		
+		final var job = new RenderJob(server);
+		job.scheduled = true;
+		if(!job.resume())
+		{
+			BadMap.LOGGER.info("Render window `{}` open, starting {} render", open.when, open.mode.name().toLowerCase());
+			job.render(open.mode);
+		}
+		scheduledJob = job;
+		scheduledKey = key;
+	}
+}
@@ -0,0 +1,184 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+// Claims on the shards of a journaled render, so several BadMap instances sharing one bmapDir
+// (e.g. extra servers started on a copy of the world only to render it) can split the work between them.
+// A claimed shard has a lease file in `journal/leases` naming its worker, renewed while that worker renders it;
+// a lease that isn't renewed within `shardLeaseSeconds` belongs to a dead (or hung) worker, and may be taken over.
+// Leases are only created or changed under a lock on `journal/leases/lock`, so claims can't race.
+class ShardLeases
+{
+	static final String DIR = "leases";
+	static final long RENEW_INTERVAL = 10_000;
+	static final long POLL_INTERVAL = 15_000; // between claim attempts while the remaining shards are leased elsewhere
+	
+	private static final String WORKER_ID = ManagementFactory.getRuntimeMXBean().getName(); // i.e. pid@hostname
+	
+	final int numShards;
+	private final File dir;
+	private final Set<Integer> held = ConcurrentHashMap.newKeySet();
+	private volatile long lastRenewed = 0;
+	
+	private interface LockedAction<T>
+	{
+		T run() throws IOException;
+	}
+	
+	ShardLeases(File dir, int numShards)
+	{
+		this.dir = dir;
+		this.numShards = numShards;
+	}
+	
+	// Whether any worker (this one included) holds an unexpired lease in `dir`.
+	static boolean anyLive(File dir)
+	{
+		final Boolean live = locked(dir, () -> {
+			final var leases = dir.listFiles((parent, name) -> name.endsWith(".lease"));
+			if(leases == null) return false;
+			
+			for(var lease: leases)
+				if(lease.lastModified() >= getExpiry()) return true;
+			return false;
+		});
+		return live == null || live; // assume the worst if the lock couldn't be had
+	}
+	
+	// Claims the first shard that isn't done or leased to a live worker, returning -1 if there are none.
+	int claim()
+	{
+		final Integer claimed = locked(() -> {
+			final var expiry = getExpiry();
+			for(int shard = 0; shard < numShards; shard++)
+			{
+				if(held.contains(shard) || getDoneFile(shard).exists()) continue;
+				
+				final var lease = getLeaseFile(shard);
+				if(lease.exists())
+				{
+					if(lease.lastModified() >= expiry) continue;
+					BadMap.LOGGER.warn("lease on render shard {} held by {} has expired, taking it over", shard, readOwner(lease));
+				}
+				
+				Files.writeString(lease.toPath(), WORKER_ID, StandardCharsets.UTF_8);
+				held.add(shard);
+				return shard;
+			}
+			return -1;
+		});
+		return claimed == null ? -1 : claimed;
+	}
+	
+	void complete(int shard)
+	{
+		locked(() -> {
+			getDoneFile(shard).createNewFile();
+			Files.deleteIfExists(getLeaseFile(shard).toPath());
+			held.remove(shard);
+			return null;
+		});
+	}
+	
+	// Gives up every held lease, so other workers can take those shards straight away.
+	void releaseAll()
+	{
+		if(held.isEmpty()) return;
+		
+		locked(() -> {
+			for(var shard: held)
+			{
+				final var lease = getLeaseFile(shard);
+				if(WORKER_ID.equals(readOwner(lease))) Files.deleteIfExists(lease.toPath());
+				held.remove(shard);
+			}
+			return null;
+		});
+	}
+	
+	boolean allDone()
+	{
+		for(int shard = 0; shard < numShards; shard++)
+			if(!getDoneFile(shard).exists()) return false;
+		return true;
+	}
+	
+	// Keeps held leases alive, to be called regularly (e.g. every tick, and as regions finish.) The renewal itself runs on `executor`.
+	void renewIfDue(Executor executor)
+	{
+		final var now = System.currentTimeMillis();
+		if(held.isEmpty() || now - lastRenewed < RENEW_INTERVAL) return;
+		
+		lastRenewed = now;
+		executor.execute(() -> locked(() -> {
+			for(var shard: held)
+			{
+				final var lease = getLeaseFile(shard);
+				final var owner = readOwner(lease);
+				if(WORKER_ID.equals(owner))
+				{
+					lease.setLastModified(System.currentTimeMillis());
+					continue;
+				}
+				
+				// our lease expired while we were stalled, the shard is just rendered twice
+				BadMap.LOGGER.warn("lost lease on render shard {} to {}", shard, owner);
+				held.remove(shard);
+			}
+			return null;
+		}));
+	}
+	
+	<T> T locked(LockedAction<T> action)
+	{
+		return locked(dir, action);
+	}
+	
+	// Runs `action` while holding the cross-process lock on the leases in `dir`, returning null if it failed.
+	// Synchronized too, as file locks are held by the whole process and so don't exclude other threads.
+	static synchronized <T> T locked(File dir, LockedAction<T> action)
+	{
+		dir.mkdirs();
+		try(
+			final var channel = FileChannel.open(new File(dir, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			final var lock = channel.lock()
+		)
+		{
+			return action.run();
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to update render shard leases", err);
+			return null;
+		}
+	}
+	
+	private static long getExpiry()
+	{
+		return System.currentTimeMillis() - BadMap.CONFIG.shardLeaseSeconds * 1000L;
+	}
+	
+	private static String readOwner(File lease) throws IOException
+	{
+		return lease.exists() ? Files.readString(lease.toPath(), StandardCharsets.UTF_8) : "nobody";
+	}
+	
+	private File getLeaseFile(int shard)
+	{
+		return new File(dir, "%d.lease".formatted(shard));
+	}
+	
+	private File getDoneFile(int shard)
+	{
+		return new File(dir, "%d.done".formatted(shard));
+	}
+}
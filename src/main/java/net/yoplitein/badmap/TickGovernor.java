@@ -0,0 +1,62 @@
+package net.yoplitein.badmap;
+
+// Watches how long server ticks take, and limits how many render tasks may run at once
+// while the server is struggling to keep up (ticks have a budget of 50ms.)
+public class TickGovernor
+{
+	static final int ADJUST_INTERVAL = 20; // ticks between changes to the worker limit
+	static final double SMOOTHING = 0.1; // weight of each new tick in the moving average
+	
+	private long tickStart = 0;
+	private double avgMspt = 0;
+	private int ticks = 0;
+	private int limit = Integer.MAX_VALUE;
+	private long lastReport = System.currentTimeMillis();
+	
+	public void onTickStart()
+	{
+		tickStart = System.nanoTime();
+	}
+	
+	public void onTickEnd()
+	{
+		if(tickStart == 0) return;
+		
+		final var mspt = (System.nanoTime() - tickStart) / 1e6;
+		avgMspt = avgMspt == 0 ? mspt : avgMspt + SMOOTHING * (mspt - avgMspt);
+		
+		final var now = System.currentTimeMillis();
+		if(now - lastReport >= 6000)
+		{
+			lastReport = now;
+			BadMap.LOGGER.trace("server running at {} mspt", "%.1f".formatted(avgMspt));
+		}
+		
+		if(++ticks < ADJUST_INTERVAL) return;
+		ticks = 0;
+		
+		final var config = BadMap.CONFIG;
+		if(config == null) return;
+		
+		final var workers = BadMap.THREADPOOL.parallelism();
+		var newLimit = Math.min(limit, workers);
+		if(!config.throttleEnabled)
+			newLimit = workers;
+		else if(avgMspt > config.throttleHighMspt)
+			newLimit /= 2; // reaches 0, i.e. paused, if the server keeps lagging
+		else if(avgMspt < config.throttleLowMspt)
+			newLimit++;
+		
+		// past the worker count the limit does nothing, so treat it as unlimited
+		newLimit = newLimit >= workers ? Integer.MAX_VALUE : newLimit;
+		if(newLimit == limit) return;
+		
+		if(newLimit == Integer.MAX_VALUE)
+			BadMap.LOGGER.debug("server at {} mspt, no longer throttling render", "%.1f".formatted(avgMspt));
+		else
+			BadMap.LOGGER.debug("server at {} mspt, throttling render to {} workers", "%.1f".formatted(avgMspt), newLimit);
+		
+		limit = newLimit;
+		BadMap.THREADPOOL.setLimit(limit);
+	}
+}
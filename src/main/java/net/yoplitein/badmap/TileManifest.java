@@ -0,0 +1,132 @@
+package net.yoplitein.badmap;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.Nullable;
+
+// Versioned listing of tile content hashes, published to the tile directory for web clients.
+// `manifest.json` is always a full snapshot; `manifest/<version>.json` holds only the tiles changed
+// since `version - 1`. Clients that are too far behind (missing deltas) refetch the snapshot.
+// Tiles can be requested as e.g. `0_0.png?h=<hash>` so they can be cached indefinitely.
+public class TileManifest
+{
+	static final String SNAPSHOT_NAME = "manifest.json";
+	static final String DELTA_DIR = "manifest";
+	static final int MAX_DELTAS = 64;
+	
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	
+	private long version = 0;
+	private final Map<String, String> tiles = new HashMap<>();
+	private final Map<String, String> changed = new HashMap<>();
+	
+	private static class Snapshot
+	{
+		long version;
+		Long from; // only present in deltas
+		Map<String, String> tiles;
+	}
+	
+	public static TileManifest load()
+	{
+		final var self = new TileManifest();
+		final var file = BadMap.CONFIG.tileDir.resolve(SNAPSHOT_NAME).toFile();
+		if(!file.exists()) return self;
+		
+		try
+		{
+			final var snapshot = gson.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Snapshot.class);
+			self.version = snapshot.version;
+			self.tiles.putAll(snapshot.tiles);
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to load tile manifest, starting a new one", err);
+		}
+		
+		return self;
+	}
+	
+	public synchronized @Nullable String getHash(String tile)
+	{
+		return tiles.get(tile);
+	}
+	
+	public synchronized void record(String tile, String hash)
+	{
+		if(hash.equals(tiles.put(tile, hash))) return;
+		changed.put(tile, hash);
+	}
+	
+	public synchronized long getVersion()
+	{
+		return version;
+	}
+	
+	// Returns the current snapshot as JSON, as published to the tile directory.
+	public synchronized String getSnapshotJson()
+	{
+		final var snapshot = new Snapshot();
+		snapshot.version = version;
+		snapshot.tiles = new TreeMap<>(tiles);
+		return gson.toJson(snapshot);
+	}
+	
+	// Takes in versions published by other instances writing to the same tile directory (i.e. sharded render workers),
+	// so the next version follows on from theirs. Tiles changed here since the last publish are kept.
+	public synchronized void merge()
+	{
+		final var file = BadMap.CONFIG.tileDir.resolve(SNAPSHOT_NAME).toFile();
+		if(!file.exists()) return;
+		
+		try
+		{
+			final var snapshot = gson.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Snapshot.class);
+			if(snapshot.version <= version) return;
+			
+			version = snapshot.version;
+			for(var entry: snapshot.tiles.entrySet())
+				if(!changed.containsKey(entry.getKey())) tiles.put(entry.getKey(), entry.getValue());
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.error("failed to merge published tile manifest", err);
+		}
+	}
+	
+	// Writes a new version if any tiles have changed since the last call.
+	public synchronized void publish()
+	{
+		if(changed.isEmpty()) return;
+		
+		final var delta = new Snapshot();
+		delta.from = version;
+		delta.version = ++version;
+		delta.tiles = new TreeMap<>(changed);
+		changed.clear();
+		
+		final var deltaDir = BadMap.CONFIG.tileDir.resolve(DELTA_DIR).toFile();
+		if(!deltaDir.exists() && !deltaDir.mkdirs())
+			BadMap.LOGGER.error("failed to create manifest delta directory `{}`", deltaDir.getPath());
+		else
+		{
+			Utils.writeAtomic(new File(deltaDir, "%d.json".formatted(version)), gson.toJson(delta).getBytes(StandardCharsets.UTF_8));
+			
+			final var stale = new File(deltaDir, "%d.json".formatted(version - MAX_DELTAS));
+			if(stale.exists() && !stale.delete())
+				BadMap.LOGGER.warn("failed to delete stale manifest delta `{}`", stale.getPath());
+		}
+		
+		// snapshot goes last, so a client seeing the new version can always fetch the delta leading to it
+		Utils.writeAtomic(BadMap.CONFIG.tileDir.resolve(SNAPSHOT_NAME).toFile(), getSnapshotJson().getBytes(StandardCharsets.UTF_8));
+		BadMap.LOGGER.debug("published tile manifest version {} ({} tiles changed)", version, delta.tiles.size());
+	}
+}
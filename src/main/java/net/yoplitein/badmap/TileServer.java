@@ -0,0 +1,161 @@
+package net.yoplitein.badmap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.jetbrains.annotations.Nullable;
+
+// Minimal HTTP server for the tile directory, so the map can be viewed without a separate web server.
+// Tiles are served from `BadMap.TILE_CACHE`, which the tile writer fills as tiles are encoded.
+// Entries are checked against the file on every hit, as tiles may also be written by other processes (e.g. shard workers.)
+public class TileServer
+{
+	static final String IMMUTABLE = "public, max-age=31536000, immutable";
+	static final String REVALIDATE = "no-cache";
+	
+	public static record CachedFile(byte[] data, String hash, long lastModified) {}
+	
+	private final HttpServer server;
+	private final ExecutorService pool;
+	
+	private TileServer(HttpServer server, ExecutorService pool)
+	{
+		this.server = server;
+		this.pool = pool;
+	}
+	
+	public static TileServer start(ModConfig config) throws IOException
+	{
+		final var bind = config.httpBindAddress == null || config.httpBindAddress.isBlank()
+			? new InetSocketAddress(config.httpPort)
+			: new InetSocketAddress(config.httpBindAddress, config.httpPort)
+		;
+		final var threadCounter = new AtomicInteger(0);
+		final var pool = Executors.newFixedThreadPool(Math.max(1, config.httpThreads), runnable -> {
+			final var thread = new Thread(runnable, "BM-http-%d".formatted(threadCounter.getAndIncrement()));
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		final var server = HttpServer.create(bind, 0);
+		final var self = new TileServer(server, pool);
+		server.createContext("/", self::handle);
+		server.setExecutor(pool);
+		server.start();
+		
+		BadMap.LOGGER.info("serving tiles on {}", server.getAddress());
+		return self;
+	}
+	
+	public void stop()
+	{
+		server.stop(0);
+		pool.shutdownNow();
+	}
+	
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			final var method = exchange.getRequestMethod();
+			final var isHead = method.equals("HEAD");
+			if(!isHead && !method.equals("GET"))
+			{
+				exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			
+			final var uri = exchange.getRequestURI();
+			final var name = uri.getPath().replaceFirst("^/+", "");
+			final var query = uri.getQuery();
+			
+			final CachedFile entry;
+			final String cacheControl;
+			if(name.equals(TileManifest.SNAPSHOT_NAME))
+			{
+				// always current, and small enough to not bother caching
+				entry = new CachedFile(
+					BadMap.MANIFEST.getSnapshotJson().getBytes(StandardCharsets.UTF_8),
+					"v%d".formatted(BadMap.MANIFEST.getVersion()),
+					0
+				);
+				cacheControl = REVALIDATE;
+			}
+			else
+			{
+				entry = lookup(name);
+				// hash-busted urls never change content, everything else must be revalidated
+				cacheControl = query != null && entry != null && query.contains("h=" + entry.hash()) ? IMMUTABLE : REVALIDATE;
+			}
+			
+			if(entry == null)
+			{
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			
+			final var headers = exchange.getResponseHeaders();
+			final var etag = "\"%s\"".formatted(entry.hash());
+			headers.set("ETag", etag);
+			headers.set("Cache-Control", cacheControl);
+			headers.set("Content-Type", contentType(name));
+			headers.set("Access-Control-Allow-Origin", "*");
+			
+			if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+			{
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			
+			exchange.sendResponseHeaders(200, isHead ? -1 : entry.data().length);
+			if(!isHead) exchange.getResponseBody().write(entry.data());
+		}
+		catch(Exception err)
+		{
+			BadMap.LOGGER.debug("error serving {}", exchange.getRequestURI(), err);
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+	
+	private static @Nullable CachedFile lookup(String name) throws IOException
+	{
+		final var tileDir = BadMap.CONFIG.tileDir.toAbsolutePath().normalize();
+		final var path = tileDir.resolve(name).normalize();
+		// refuse escaping the tile directory, and the writer's in-progress temp files
+		if(!path.startsWith(tileDir) || path.getFileName().toString().startsWith(".")) return null;
+		if(!Files.isRegularFile(path)) return null;
+		
+		// just a stat per hit, as files are replaced by atomic rename and so always change mtime (and usually size)
+		final var cache = BadMap.TILE_CACHE;
+		final var file = path.toFile();
+		final var lastModified = file.lastModified();
+		final var cached = cache.get(name);
+		if(cached != null && cached.lastModified() == lastModified && cached.data().length == file.length()) return cached;
+		
+		final var data = Files.readAllBytes(path);
+		final var entry = new CachedFile(data, Utils.hashBytes(data), lastModified);
+		cache.put(name, entry);
+		return entry;
+	}
+	
+	private static String contentType(String name)
+	{
+		if(name.endsWith(".png")) return "image/png";
+		if(name.endsWith(".json")) return "application/json";
+		if(name.endsWith(".html")) return "text/html; charset=utf-8";
+		if(name.endsWith(".js")) return "text/javascript";
+		return "application/octet-stream";
+	}
+}
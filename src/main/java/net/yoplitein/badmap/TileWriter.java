@@ -0,0 +1,139 @@
+package net.yoplitein.badmap;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.Nullable;
+
+// Dedicated stage for writing finished tiles to disk, so render workers never block on encoding/IO.
+// Writes to the same tile are coalesced while queued, so only the newest raster is ever written.
+public class TileWriter
+{
+	static final int DEFAULT_QUEUE_SIZE = 64;
+	
+	// `renderedAt` is when the render that produced `img` started, i.e. chunks modified since then aren't in it
+	static record PendingTile(BufferedImage img, long renderedAt, CompletableFuture<Void> future) {}
+	
+	private final ConcurrentHashMap<String, PendingTile> pending = new ConcurrentHashMap<>();
+	private final ArrayBlockingQueue<String> queue;
+	private final Thread thread;
+	private volatile boolean running = true;
+	
+	public TileWriter(int queueSize)
+	{
+		queue = new ArrayBlockingQueue<>(queueSize <= 0 ? DEFAULT_QUEUE_SIZE : queueSize);
+		thread = new Thread(this::run, "BM-tile-writer");
+		thread.setPriority(BadMap.CONFIG.workerThreadPriority);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	// Queues `img` to be written as the tile `name` (relative to the tile directory), stamped with `renderedAt`.
+	// Blocks if the queue is full. The returned future completes once a raster at least as new as `img` is on disk.
+	// `img` must not be modified afterwards, as it may be encoded at any point until then.
+	public CompletableFuture<Void> submit(String name, BufferedImage img, long renderedAt)
+	{
+		if(!running) throw new IllegalStateException("tile writer has been shut down");
+		
+		BadMap.RASTER_POOL.retain(img); // released once encoded, or once superseded
+		final var isNew = new Utils.Cell<Boolean>(false);
+		final var entry = pending.compute(name, (key, old) -> {
+			isNew.val = old == null;
+			if(old != null) BadMap.RASTER_POOL.release(old.img);
+			return new PendingTile(img, renderedAt, old == null ? new CompletableFuture<>() : old.future);
+		});
+		
+		if(isNew.val)
+		{
+			try { queue.put(name); }
+			catch(InterruptedException err)
+			{
+				pending.remove(name, entry);
+				Thread.currentThread().interrupt();
+				entry.future.completeExceptionally(err);
+			}
+		}
+		
+		return entry.future;
+	}
+	
+	// Returns the raster queued for `name` that has not yet hit disk, if any.
+	// Readers must prefer this over the file on disk, which is stale while a write is pending.
+	public @Nullable PendingTile getPending(String name)
+	{
+		return pending.get(name);
+	}
+	
+	// Like getPending, but the caller also takes a reference to the pooled raster, to release when done with it.
+	public @Nullable PendingTile retainPending(String name)
+	{
+		return pending.computeIfPresent(name, (key, tile) -> {
+			BadMap.RASTER_POOL.retain(tile.img);
+			return tile;
+		});
+	}
+	
+	public void shutdown()
+	{
+		running = false;
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		thread.join(unit.toMillis(timeout));
+		return !thread.isAlive();
+	}
+	
+	private void run()
+	{
+		while(running || !queue.isEmpty())
+		{
+			String name;
+			try { name = queue.poll(1, TimeUnit.SECONDS); }
+			catch(InterruptedException err) { break; }
+			if(name == null) continue;
+			
+			// removing before writing means a concurrent submit will requeue the tile rather than be lost
+			final var tile = pending.remove(name);
+			if(tile == null) continue;
+			
+			try
+			{
+				final var png = Utils.encodePNG(tile.img);
+				final var hash = Utils.hashBytes(png);
+				
+				final var file = BadMap.CONFIG.tileDir.resolve(name).toFile();
+				
+				// identical tiles are common in incremental renders (e.g. chunk touched but map colors unchanged)
+				if(!file.exists() || !hash.equals(BadMap.MANIFEST.getHash(name)))
+				{
+					if(name.indexOf('/') >= 0) file.getParentFile().mkdirs(); // layer subdirectories
+					Utils.writeAtomic(file, png);
+					BadMap.MANIFEST.record(name, hash);
+				}
+				// either way the mtime is the render time, as incremental renders without a sidecar compare chunk mtimes against it
+				// (previews have none, and are left to be rendered properly)
+				if(tile.renderedAt != 0) file.setLastModified(tile.renderedAt);
+				
+				final var cache = BadMap.TILE_CACHE;
+				if(cache != null) cache.put(name, new TileServer.CachedFile(png, hash, file.lastModified()));
+				tile.future.complete(null);
+			}
+			catch(Throwable err)
+			{
+				BadMap.LOGGER.error("failed to write tile {}", name, err);
+				tile.future.completeExceptionally(err);
+			}
+			finally
+			{
+				BadMap.RASTER_POOL.release(tile.img);
+			}
+		}
+		
+		final var dropped = pending.size();
+		if(dropped > 0) BadMap.LOGGER.error("tile writer stopped with {} tiles unwritten", dropped);
+	}
+}
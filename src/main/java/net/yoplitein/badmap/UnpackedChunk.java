@@ -0,0 +1,98 @@
+package net.yoplitein.badmap;
+
+import java.util.Arrays;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.Heightmap;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.Palette;
+import net.yoplitein.badmap.mixin.PalettedContainerAccessor;
+
+// A parsed chunk's surface heightmap and block state indices, unpacked into flat arrays for renderChunk's column scans.
+// Sections are unpacked the first time a scan reaches them. Arrays are reused across chunks rendered on the same thread,
+// so an instance is only valid until the next call to `of` (or `ofNeighbour`, respectively) on that thread.
+class UnpackedChunk
+{
+	private static final ThreadLocal<UnpackedChunk> instances = ThreadLocal.withInitial(UnpackedChunk::new);
+	private static final ThreadLocal<UnpackedChunk> neighbours = ThreadLocal.withInitial(UnpackedChunk::new);
+	private static final BlockState AIR = Blocks.AIR.getDefaultState();
+	
+	final int[] heights = new int[256]; // as in Heightmap.get
+	
+	private int bottomY;
+	private ChunkSection[] sections = new ChunkSection[0];
+	private int[][] states = new int[0][];
+	private Palette<BlockState>[] palettes = newPaletteArray(0);
+	private boolean[] unpacked = new boolean[0];
+	
+	static UnpackedChunk of(Chunk chunk)
+	{
+		return unpack(instances.get(), chunk);
+	}
+	
+	// For peeking at a neighbouring chunk, without invalidating the instance returned by `of`.
+	static UnpackedChunk ofNeighbour(Chunk chunk)
+	{
+		return unpack(neighbours.get(), chunk);
+	}
+	
+	private static UnpackedChunk unpack(UnpackedChunk self, Chunk chunk)
+	{
+		self.bottomY = chunk.getBottomY();
+		self.sections = chunk.getSectionArray();
+		
+		final var count = self.sections.length;
+		if(self.states.length < count)
+		{
+			self.states = Arrays.copyOf(self.states, count);
+			for(int i = 0; i < count; i++)
+				if(self.states[i] == null) self.states[i] = new int[4096];
+			self.palettes = newPaletteArray(count);
+			self.unpacked = new boolean[count];
+		}
+		Arrays.fill(self.unpacked, false);
+		
+		final var heightmap = chunk.getHeightmap(Heightmap.Type.WORLD_SURFACE);
+		PackedArrays.unpack(heightmap.asLongArray(), MathHelper.log2DeBruijn(chunk.getHeight() + 1), 256, self.heights);
+		for(int i = 0; i < 256; i++)
+			self.heights[i] += self.bottomY;
+		
+		return self;
+	}
+	
+	int getHeight(int x, int z)
+	{
+		return heights[x + z * 16];
+	}
+	
+	BlockState getBlockState(int x, int y, int z)
+	{
+		final var index = (y - bottomY) >> 4;
+		if(index < 0 || index >= sections.length) return AIR;
+		
+		final var section = sections[index];
+		if(ChunkSection.isEmpty(section)) return AIR;
+		
+		if(!unpacked[index])
+		{
+			@SuppressWarnings("unchecked")
+			final var container = (PalettedContainerAccessor<BlockState>)section.getContainer();
+			final var data = container.getData();
+			PackedArrays.unpack(data.getStorage(), data.getElementBits(), 4096, states[index]);
+			palettes[index] = container.getPalette();
+			unpacked[index] = true;
+		}
+		
+		final var state = palettes[index].getByIndex(states[index][(y & 15) << 8 | z << 4 | x]);
+		return state == null ? AIR : state;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Palette<BlockState>[] newPaletteArray(int length)
+	{
+		return (Palette<BlockState>[])new Palette[length];
+	}
+}
@@ -1,7 +1,11 @@
 package net.yoplitein.badmap;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -10,9 +14,13 @@ import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
 
+import org.jetbrains.annotations.Nullable;
+
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 import net.minecraft.block.MapColor;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.ClickEvent;
 import net.minecraft.text.HoverEvent;
 import net.minecraft.text.LiteralText;
@@ -97,18 +105,51 @@ public class Utils
 		return String.format("%d_%d.png", pos.x, pos.z);
 	}
 	
-	public static void writePNG(File file, BufferedImage img)
+	// Relative path for per-dimension files, e.g. `minecraft/overworld`.
+	public static String dimensionDirName(ServerWorld world)
+	{
+		final var id = world.getRegistryKey().getValue();
+		return id.getNamespace() + "/" + id.getPath();
+	}
+	
+	public static byte[] encodePNG(BufferedImage img)
+	{
+		try
+		{
+			final var out = new ByteArrayOutputStream(1 << 16);
+			ImageIO.write(img, "png", out);
+			return out.toByteArray();
+		}
+		catch(Exception err)
+		{
+			throw new RuntimeException("failed to encode png", err);
+		}
+	}
+	
+	// Writes to a temporary file beside `file` and renames it into place,
+	// so readers (i.e. web clients) never observe a partially written file.
+	public static void writeAtomic(File file, byte[] data)
 	{
+		final var target = file.toPath();
+		final var tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+		
 		try
 		{
-			ImageIO.write(img, "png", file);
+			Files.write(tmp, data);
+			try { Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING); }
+			catch(AtomicMoveNotSupportedException err) { Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING); }
 		}
 		catch(Exception err)
 		{
-			throw new RuntimeException("failed to save png", err);
+			throw new RuntimeException("failed to write %s".formatted(file.getName()), err);
 		}
 	}
 	
+	public static String hashBytes(byte[] data)
+	{
+		return Hashing.murmur3_128().hashBytes(data).toString();
+	}
+	
 	public static BufferedImage readPNG(File file)
 	{
 		try
@@ -143,6 +184,13 @@ public class Utils
 	
 	public static List<MutableText> getLocationTexts(List<BlockPos> locs, boolean withChunkPos)
 	{
+		return getLocationTexts(locs, withChunkPos, null);
+	}
+	
+	// `dimension` makes clicking teleport into that dimension, rather than the player's own
+	public static List<MutableText> getLocationTexts(List<BlockPos> locs, boolean withChunkPos, @Nullable String dimension)
+	{
+		final var tpCommand = dimension == null ? "/tp @s %s %s %s" : "/execute in " + dimension + " run tp @s %s %s %s";
 		final var result = new ArrayList<MutableText>(locs.size());
 		
 		for(var pos: locs)
@@ -157,7 +205,7 @@ public class Utils
 					.withColor(Formatting.GREEN)
 					.withClickEvent(new ClickEvent(
 						ClickEvent.Action.SUGGEST_COMMAND,
-						"/tp @s %s %s %s".formatted(
+						tpCommand.formatted(
 							pos.getX(), pos.getY(), pos.getZ()
 						)
 					))
@@ -227,8 +275,9 @@ public class Utils
 	
 	public static <T> List<List<T>> workerBatches(List<T> list)
 	{
-		final var numWorkers = BadMap.THREADPOOL.getCorePoolSize();
+		final var numWorkers = BadMap.THREADPOOL.parallelism();
 		final var len = list.size();
-		return Lists.partition(list, len < numWorkers ? len : len / numWorkers);
+		// rounded up, so there are never more batches than workers, and short lists still get spread across them
+		return Lists.partition(list, Math.max(1, (len + numWorkers - 1) / numWorkers));
 	}
 }
@@ -0,0 +1,266 @@
+package net.yoplitein.badmap;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.annotations.SerializedName;
+
+import org.jetbrains.annotations.Nullable;
+
+// Executors for render work, with the backing implementation selected by config.
+// This object itself runs CPU-bound work; `io()` runs blocking region file/tile IO.
+// Both are stable across config reloads, as futures hold on to the executor they were chained with.
+public class WorkerPool implements Executor
+{
+	public enum Backend
+	{
+		@SerializedName("threadpool") THREADPOOL,
+		@SerializedName("forkjoin") FORKJOIN,
+	}
+	
+	public enum IOMode
+	{
+		@SerializedName("shared") SHARED, // run IO on the CPU workers
+		@SerializedName("threadpool") THREADPOOL,
+		@SerializedName("virtual") VIRTUAL, // one virtual thread per task, if the JVM supports it
+	}
+	
+	private final ThreadGroup workers = new ThreadGroup("BadMap render pool");
+	private final AtomicInteger workerCounter = new AtomicInteger(0);
+	private final AtomicInteger ioCounter = new AtomicInteger(0);
+	
+	private volatile ExecutorService cpu;
+	private volatile @Nullable ExecutorService io; // null when shared
+	private volatile int parallelism = 1;
+	
+	// tasks are held here rather than in the backing executor, so the tick governor can throttle them
+	private final ConcurrentLinkedQueue<Runnable> held = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger running = new AtomicInteger(0);
+	private volatile int limit = Integer.MAX_VALUE;
+	
+	private Backend backend = Backend.THREADPOOL;
+	
+	private final Executor ioExecutor = task -> {
+		final var io = this.io;
+		(io != null ? io : cpu).execute(task);
+	};
+	
+	public WorkerPool()
+	{
+		cpu = newThreadPool(0); // no threads are spawned until config is loaded
+	}
+	
+	@Override
+	public void execute(Runnable task)
+	{
+		held.add(task);
+		dispatch();
+	}
+	
+	// Limits how many CPU tasks may run at once, below the number of workers. 0 pauses rendering entirely.
+	public void setLimit(int limit)
+	{
+		this.limit = limit;
+		dispatch();
+	}
+	
+	private void dispatch()
+	{
+		while(true)
+		{
+			final var count = running.get();
+			if(count >= limit) return;
+			if(!running.compareAndSet(count, count + 1)) continue;
+			
+			final var task = held.poll();
+			if(task == null)
+			{
+				running.decrementAndGet();
+				// a task may have been added between the poll and decrement, which would otherwise be stranded
+				if(held.isEmpty()) return;
+				continue;
+			}
+			
+			try
+			{
+				cpu.execute(() -> {
+					try { task.run(); }
+					finally
+					{
+						running.decrementAndGet();
+						dispatch();
+					}
+				});
+			}
+			catch(RejectedExecutionException err)
+			{
+				running.decrementAndGet();
+				throw err;
+			}
+		}
+	}
+	
+	public Executor io()
+	{
+		return ioExecutor;
+	}
+	
+	// Number of CPU workers, i.e. how many ways work should be split to keep them all busy.
+	public int parallelism()
+	{
+		return parallelism;
+	}
+	
+	public synchronized void configure(ModConfig config)
+	{
+		var workerThreads = config.maxWorkerThreads;
+		if(workerThreads <= 0) workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		parallelism = workerThreads;
+		
+		final var newBackend = config.workerBackend == null ? Backend.THREADPOOL : config.workerBackend;
+		BadMap.LOGGER.debug("using {} backend with {} worker threads", newBackend, workerThreads);
+		if(newBackend == Backend.THREADPOOL && backend == Backend.THREADPOOL)
+		{
+			final var pool = (ThreadPoolExecutor)cpu;
+			// order matters, as core size may not exceed max size
+			if(workerThreads > pool.getMaximumPoolSize()) pool.setMaximumPoolSize(workerThreads);
+			// without this, new threads are never spun up due to dumb executor semantics around the workqueue
+			pool.setCorePoolSize(workerThreads);
+			pool.setMaximumPoolSize(workerThreads);
+			
+			BadMap.LOGGER.debug("setting priority of existing threads to {}", config.workerThreadPriority);
+			var threads = new Thread[workers.activeCount()];
+			workers.enumerate(threads);
+			for(var thread: threads) if(thread != null) thread.setPriority(config.workerThreadPriority);
+		}
+		else
+		{
+			// fork/join pools can't be resized, so are replaced outright; queued tasks still finish on the old pool
+			final var old = cpu;
+			cpu = newBackend == Backend.FORKJOIN ? newForkJoinPool(workerThreads, config.workerThreadPriority) : newThreadPool(workerThreads);
+			old.shutdown();
+		}
+		backend = newBackend;
+		
+		final var newIOMode = config.ioMode == null ? IOMode.SHARED : config.ioMode;
+		final var oldIO = io;
+		io = switch(newIOMode)
+		{
+			case SHARED -> null;
+			case THREADPOOL -> newIOPool(config.maxIOThreads);
+			case VIRTUAL -> {
+				final var virtual = newVirtualThreadExecutor();
+				if(virtual != null) yield virtual;
+				
+				BadMap.LOGGER.warn("virtual threads are not supported by this JVM, falling back to a thread pool for IO");
+				yield newIOPool(config.maxIOThreads);
+			}
+		};
+		if(oldIO != null) oldIO.shutdown();
+	}
+	
+	public void shutdown()
+	{
+		// let anything held back by throttling drain before the executor stops accepting tasks
+		setLimit(Integer.MAX_VALUE);
+		cpu.shutdown();
+		final var io = this.io;
+		if(io != null) io.shutdown();
+	}
+	
+	public boolean isTerminated()
+	{
+		final var io = this.io;
+		return cpu.isTerminated() && (io == null || io.isTerminated());
+	}
+	
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		final var deadline = System.nanoTime() + unit.toNanos(timeout);
+		if(!cpu.awaitTermination(timeout, unit)) return false;
+		
+		final var io = this.io;
+		return io == null || io.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	
+	// Returns number of tasks that were dropped.
+	public int shutdownNow()
+	{
+		var dropped = cpu.shutdownNow().size() + held.size();
+		held.clear();
+		final var io = this.io;
+		if(io != null) dropped += io.shutdownNow().size();
+		return dropped;
+	}
+	
+	private ThreadPoolExecutor newThreadPool(int threads)
+	{
+		return new ThreadPoolExecutor(
+			threads, Math.max(1, threads),
+			0, TimeUnit.DAYS,
+			new LinkedBlockingQueue<Runnable>(),
+			runnable -> {
+				final var thread = new Thread(workers, runnable, "BM-pool-%d".formatted(workerCounter.getAndIncrement()));
+				thread.setPriority(BadMap.CONFIG.workerThreadPriority);
+				return thread;
+			}
+		);
+	}
+	
+	private ForkJoinPool newForkJoinPool(int threads, int priority)
+	{
+		return new ForkJoinPool(
+			threads,
+			pool -> {
+				// the default factory's threads get the system classloader, which can't see mod classes
+				final var thread = new ForkJoinWorkerThread(pool) {};
+				thread.setName("BM-pool-%d".formatted(workerCounter.getAndIncrement()));
+				thread.setContextClassLoader(WorkerPool.class.getClassLoader());
+				thread.setPriority(priority);
+				return thread;
+			},
+			(thread, err) -> BadMap.LOGGER.error("uncaught exception in {}", thread.getName(), err),
+			true // FIFO, as tasks here are mostly independent rather than recursive
+		);
+	}
+	
+	private ExecutorService newIOPool(int threads)
+	{
+		if(threads <= 0) threads = 2 * Runtime.getRuntime().availableProcessors();
+		
+		final var pool = new ThreadPoolExecutor(
+			threads, threads,
+			30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			runnable -> {
+				final var thread = new Thread(workers, runnable, "BM-io-%d".formatted(ioCounter.getAndIncrement()));
+				thread.setPriority(BadMap.CONFIG.workerThreadPriority);
+				return thread;
+			}
+		);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	// Executors.newVirtualThreadPerTaskExecutor only exists from Java 21, while we target 16.
+	private static @Nullable ExecutorService newVirtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException err)
+		{
+			return null;
+		}
+	}
+}
@@ -22,6 +22,8 @@ import net.minecraft.world.chunk.WorldChunk;
 import net.minecraft.world.poi.PointOfInterestStorage;
 import net.yoplitein.badmap.BadMap;
 import net.yoplitein.badmap.MtimeAccessor;
+import net.yoplitein.badmap.MtimeStore;
+import net.yoplitein.badmap.RegionReader;
 
 @Mixin(ChunkSerializer.class)
 public class ChunkSerializerMixin
@@ -45,13 +47,16 @@ public class ChunkSerializerMixin
 		}
 		
 		final var chunk = ((ReadOnlyChunk)protoChunk).getWrappedChunk();
-		final var level = nbt.getCompound("Level");
+		final var mtimes = MtimeStore.forWorld(world);
 		
-		final var mtime = level.contains("bm__mtime", NbtType.LONG) ? level.getLong("bm__mtime") : System.currentTimeMillis();
-		if(!level.contains("bm__mtime", NbtType.LONG))
+		var mtime = mtimes.get(pos);
+		if(mtime == MtimeStore.UNKNOWN)
 		{
-			level.putLong("bm__mtime", mtime);
-			world.getChunkManager().threadedAnvilChunkStorage.setNbt(chunk.getPos(), nbt);
+			// chunks saved by older versions carry their mtime in NBT, others weren't modified after they were last written
+			final var level = nbt.getCompound("Level");
+			mtime = level.contains("bm__mtime", NbtType.LONG) ? level.getLong("bm__mtime") : RegionReader.getWrittenAt(world, pos);
+			if(mtime == MtimeStore.UNKNOWN) mtime = System.currentTimeMillis();
+			mtimes.set(pos, mtime);
 		}
 		
 		((MtimeAccessor)chunk).setMtime(mtime);
@@ -62,8 +67,15 @@ public class ChunkSerializerMixin
 	{
 		if(!(chunk instanceof WorldChunk)) return;
 		
-		final var nbt = cir.getReturnValue();
-		final var level = nbt.getCompound("Level");
-		level.putLong("bm__mtime", ((MtimeAccessor)chunk).getMtime());
+		// freshly generated chunks have never been stamped, and storing their 0 would read back as unknown (i.e. always modified)
+		final var accessor = (MtimeAccessor)chunk;
+		if(accessor.getMtime() == MtimeStore.UNKNOWN) accessor.setMtime(System.currentTimeMillis());
+		
+		// the stored mtime may be newer, e.g. bumped by a render that failed on this chunk so it's retried
+		final var mtimes = MtimeStore.forWorld(world);
+		if(accessor.getMtime() > mtimes.get(chunk.getPos())) mtimes.set(chunk.getPos(), accessor.getMtime());
+		
+		// the write this save is for is only queued after we return, so this always precedes it
+		MtimeStore.savesForWorld(world).set(chunk.getPos(), System.currentTimeMillis());
 	}
 }
@@ -0,0 +1,19 @@
+package net.yoplitein.badmap.mixin;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+import net.minecraft.util.collection.PackedIntegerArray;
+import net.minecraft.world.chunk.Palette;
+import net.minecraft.world.chunk.PalettedContainer;
+
+// Raw storage of a chunk section, so it can be unpacked in bulk rather than one getBlockState at a time.
+@Mixin(PalettedContainer.class)
+public interface PalettedContainerAccessor<T>
+{
+	@Accessor("data")
+	PackedIntegerArray getData();
+	
+	@Accessor("palette")
+	Palette<T> getPalette();
+}
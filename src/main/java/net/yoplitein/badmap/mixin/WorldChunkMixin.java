@@ -1,15 +1,19 @@
 package net.yoplitein.badmap.mixin;
 
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
 import net.minecraft.world.chunk.WorldChunk;
 import net.yoplitein.badmap.MtimeAccessor;
+import net.yoplitein.badmap.MtimeStore;
 
 @Mixin(WorldChunk.class)
 public abstract class WorldChunkMixin implements MtimeAccessor
@@ -17,6 +21,9 @@ public abstract class WorldChunkMixin implements MtimeAccessor
 	@Unique
 	private long mtime = 0;
 	
+	@Shadow
+	public abstract World getWorld();
+	
 	public long getMtime()
 	{
 		return mtime;
@@ -35,5 +42,7 @@ public abstract class WorldChunkMixin implements MtimeAccessor
 		if(oldState.isOf(newState.getBlock())) return; // mere property changes should never change map color
 		
 		mtime = System.currentTimeMillis();
+		if(getWorld() instanceof ServerWorld world)
+			MtimeStore.forWorld(world).set(getPos(), mtime);
 	}
 }